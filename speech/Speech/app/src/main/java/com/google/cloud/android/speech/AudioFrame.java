@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A reference-counted chunk of audio data owned by an {@link AudioFramePool}.
+ *
+ * <p>A frame is handed out by {@link AudioFramePool#acquire()} with a reference count of one.
+ * Anyone who needs to keep the frame beyond the current call should {@link #retain()} it, and
+ * every holder must {@link #release()} it exactly once. The frame returns to its pool when the
+ * last reference is released, so its data must not be touched after that.</p>
+ */
+public class AudioFrame {
+
+    private final AudioFramePool mPool;
+
+    private final byte[] mData;
+
+    /** Wraps {@link #mData} so that {@link #asByteString()} does not need to copy it. */
+    private final ByteBuffer mBuffer;
+
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    private int mSize;
+
+    private long mUtteranceId;
+
+    private boolean mSilent;
+
+    AudioFrame(AudioFramePool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+        mBuffer = ByteBuffer.wrap(mData);
+    }
+
+    /**
+     * @return The backing array of this frame. Only the first {@link #getSize()} bytes are
+     * relevant.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * @return The number of bytes that can be stored in this frame.
+     */
+    public int getCapacity() {
+        return mData.length;
+    }
+
+    /**
+     * @return The number of bytes of audio data in this frame.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Sets the number of bytes of audio data in this frame.
+     *
+     * @param size The size of the actual data in {@link #getData()}.
+     */
+    public void setSize(int size) {
+        if (size < 0 || size > mData.length) {
+            throw new IllegalArgumentException("Invalid frame size: " + size);
+        }
+        mSize = size;
+    }
+
+    /**
+     * @return The utterance this frame belongs to.
+     */
+    public long getUtteranceId() {
+        return mUtteranceId;
+    }
+
+    /**
+     * Sets the utterance this frame belongs to.
+     *
+     * @param utteranceId An ID that increases with every utterance.
+     */
+    public void setUtteranceId(long utteranceId) {
+        mUtteranceId = utteranceId;
+    }
+
+    /**
+     * @return {@code true} if the voice activity detector heard no speech in this frame. Such a
+     * frame is the first to go when audio has to be dropped.
+     */
+    public boolean isSilent() {
+        return mSilent;
+    }
+
+    /**
+     * Marks the frame as silent or not. Frames are not silent unless marked so.
+     *
+     * @param silent Whether the voice activity detector heard no speech in this frame.
+     */
+    public void setSilent(boolean silent) {
+        mSilent = silent;
+    }
+
+    /**
+     * Adds a reference to this frame.
+     *
+     * @return This frame.
+     */
+    public AudioFrame retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("The frame has already been released.");
+        }
+        return this;
+    }
+
+    /**
+     * Removes a reference to this frame, returning it to its pool when no references are left.
+     */
+    public void release() {
+        final int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("The frame has already been released.");
+        }
+    }
+
+    /**
+     * Wraps the audio data of this frame as a {@link ByteString} without copying it. The returned
+     * value shares the backing array, so it must not be used after this frame is released.
+     *
+     * @return The audio data.
+     */
+    public ByteString asByteString() {
+        mBuffer.clear();
+        mBuffer.limit(mSize);
+        return UnsafeByteOperations.unsafeWrap(mBuffer);
+    }
+
+    void reset() {
+        mSize = 0;
+        mUtteranceId = 0;
+        mSilent = false;
+        mRefCount.set(1);
+    }
+
+}
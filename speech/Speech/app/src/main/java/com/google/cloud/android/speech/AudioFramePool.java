@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Recycles {@link AudioFrame}s of a fixed capacity so that the audio path does not produce
+ * garbage in steady state.
+ *
+ * <p>The pool never blocks. When it runs out of frames (for example, because the network is
+ * holding on to many of them), it allocates a new one. Frames released while the pool is full are
+ * left to the garbage collector.</p>
+ */
+public class AudioFramePool {
+
+    private static final int DEFAULT_MAX_POOLED_FRAMES = 32;
+
+    private final int mFrameCapacity;
+
+    private final AudioFrame[] mFrames;
+
+    private int mCount;
+
+    private int mAllocatedCount;
+
+    /**
+     * @param frameCapacity The size of each frame in bytes.
+     */
+    public AudioFramePool(int frameCapacity) {
+        this(frameCapacity, DEFAULT_MAX_POOLED_FRAMES);
+    }
+
+    /**
+     * @param frameCapacity   The size of each frame in bytes.
+     * @param maxPooledFrames The maximum number of idle frames kept for reuse.
+     */
+    public AudioFramePool(int frameCapacity, int maxPooledFrames) {
+        mFrameCapacity = frameCapacity;
+        mFrames = new AudioFrame[maxPooledFrames];
+    }
+
+    /**
+     * @return The size of each frame in bytes.
+     */
+    public int getFrameCapacity() {
+        return mFrameCapacity;
+    }
+
+    /**
+     * Obtains an empty frame. The caller owns the only reference to it.
+     *
+     * @return A frame with a reference count of one.
+     */
+    public AudioFrame acquire() {
+        AudioFrame frame = null;
+        synchronized (mFrames) {
+            if (mCount > 0) {
+                frame = mFrames[--mCount];
+                mFrames[mCount] = null;
+            } else {
+                mAllocatedCount++;
+            }
+        }
+        if (frame == null) {
+            frame = new AudioFrame(this, mFrameCapacity);
+        }
+        frame.reset();
+        return frame;
+    }
+
+    /**
+     * @return The total number of frames this pool has allocated so far.
+     */
+    public int getAllocatedCount() {
+        synchronized (mFrames) {
+            return mAllocatedCount;
+        }
+    }
+
+    void recycle(AudioFrame frame) {
+        synchronized (mFrames) {
+            if (mCount < mFrames.length) {
+                mFrames[mCount++] = frame;
+            }
+        }
+    }
+
+}
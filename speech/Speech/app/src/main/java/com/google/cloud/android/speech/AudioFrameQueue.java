@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A bounded, lock-free queue of {@link AudioFrame}s between exactly one producer thread and one
+ * consumer thread.
+ *
+ * <p>{@link #offer(AudioFrame)} never blocks. When the queue is full, a frame is dropped according
+ * to the {@link DropPolicy} and {@link #getOverrunCount()} is incremented. Dropped frames are
+ * released by the queue.</p>
+ */
+public class AudioFrameQueue {
+
+    public enum DropPolicy {
+
+        /** Drops the frame being offered. */
+        DROP_NEWEST,
+
+        /** Drops the frame that has waited the longest to make room for the new one. */
+        DROP_OLDEST,
+
+    }
+
+    private final AtomicReferenceArray<AudioFrame> mSlots;
+
+    private final int mMask;
+
+    private final DropPolicy mDropPolicy;
+
+    /** The index of the next frame to be taken. Advanced by the consumer, and by the producer. */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /** The index of the next frame to be put. Only advanced by the producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mOverrunCount = new AtomicLong();
+
+    /**
+     * @param capacity   The maximum number of frames in the queue. This is rounded up to a power of
+     *                   two.
+     * @param dropPolicy What to drop when the queue is full.
+     */
+    public AudioFrameQueue(int capacity, DropPolicy dropPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+        mDropPolicy = dropPolicy;
+    }
+
+    /**
+     * Adds a frame to the queue. Must only be called from the producer thread. The queue takes
+     * over the caller's reference to the {@code frame}.
+     *
+     * @param frame The frame.
+     * @return {@code true} if the frame was queued, {@code false} if it was dropped.
+     */
+    public boolean offer(AudioFrame frame) {
+        final long tail = mTail.get();
+        long head;
+        while (tail - (head = mHead.get()) > mMask) {
+            if (mDropPolicy == DropPolicy.DROP_NEWEST) {
+                mOverrunCount.incrementAndGet();
+                frame.release();
+                return false;
+            }
+            // Only drop the oldest frame if the consumer has not taken it, and made room, first.
+            final AudioFrame oldest = mSlots.get((int) head & mMask);
+            if (mHead.compareAndSet(head, head + 1)) {
+                mOverrunCount.incrementAndGet();
+                oldest.release();
+                break;
+            }
+        }
+        mSlots.lazySet((int) tail & mMask, frame);
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest frame from the queue. Must only be called from the consumer thread. The
+     * caller becomes responsible for releasing the returned frame.
+     *
+     * @return The frame, or {@code null} if the queue is empty.
+     */
+    public AudioFrame poll() {
+        return take();
+    }
+
+    /**
+     * Releases all the frames in the queue. Must only be called from the consumer thread.
+     */
+    public void clear() {
+        AudioFrame frame;
+        while ((frame = take()) != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * @return {@code true} if there is no frame in the queue.
+     */
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    /**
+     * @return The maximum number of frames in the queue.
+     */
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return The number of times a frame was dropped because the queue was full.
+     */
+    public long getOverrunCount() {
+        return mOverrunCount.get();
+    }
+
+    private AudioFrame take() {
+        while (true) {
+            final long head = mHead.get();
+            if (head == mTail.get()) {
+                return null;
+            }
+            final AudioFrame frame = mSlots.get((int) head & mMask);
+            // The producer may drop the same frame concurrently under DROP_OLDEST.
+            if (mHead.compareAndSet(head, head + 1)) {
+                return frame;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Keeps the most recent audio in a fixed-size circular buffer. Older audio is overwritten.
+ *
+ * <p>This class is not thread-safe, and it does not allocate after construction.</p>
+ */
+public class AudioHistory {
+
+    private final byte[] mBuffer;
+
+    /** The position where the next byte is written. */
+    private int mWrite;
+
+    /** The number of valid bytes in the buffer. */
+    private int mSize;
+
+    /**
+     * @param capacity The maximum number of bytes to keep. Rounded down to whole 16-bit samples.
+     */
+    public AudioHistory(int capacity) {
+        mBuffer = new byte[capacity & ~1];
+    }
+
+    /**
+     * Calculates the capacity needed to keep a certain duration of LINEAR16 mono audio.
+     *
+     * @param millis     The duration.
+     * @param sampleRate The sample rate.
+     * @return The capacity in bytes.
+     */
+    public static int capacityFor(int millis, int sampleRate) {
+        return (int) ((long) millis * sampleRate / 1000) * 2;
+    }
+
+    /**
+     * @return The maximum number of bytes to keep.
+     */
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return The number of bytes currently kept.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Appends audio, overwriting the oldest audio if the buffer is full.
+     *
+     * @param data The audio data.
+     * @param size The size of the actual data in {@code data}.
+     */
+    public void write(byte[] data, int size) {
+        final int capacity = mBuffer.length;
+        if (capacity == 0) {
+            return;
+        }
+        int offset = 0;
+        if (size > capacity) {
+            // Only the tail fits.
+            offset = size - capacity;
+            size = capacity;
+        }
+        final int first = Math.min(size, capacity - mWrite);
+        System.arraycopy(data, offset, mBuffer, mWrite, first);
+        System.arraycopy(data, offset + first, mBuffer, 0, size - first);
+        mWrite = (mWrite + size) % capacity;
+        mSize = Math.min(mSize + size, capacity);
+    }
+
+    /**
+     * Copies the kept audio, oldest first.
+     *
+     * @param position The position in the kept audio to start reading from; 0 is the oldest byte.
+     * @param out      The buffer to copy to.
+     * @param length   The maximum number of bytes to copy.
+     * @return The number of bytes copied.
+     */
+    public int read(int position, byte[] out, int length) {
+        final int capacity = mBuffer.length;
+        if (position >= mSize) {
+            return 0;
+        }
+        length = Math.min(length, mSize - position);
+        final int start = (mWrite - mSize + position + capacity) % capacity;
+        final int first = Math.min(length, capacity - start);
+        System.arraycopy(mBuffer, start, out, 0, first);
+        System.arraycopy(mBuffer, 0, out, first, length - first);
+        return length;
+    }
+
+    /**
+     * Moves the kept audio into frames from {@code pool}, oldest first, and offers them to
+     * {@code queue} as silent audio of an utterance. The history is empty afterwards.
+     *
+     * @param pool        The pool to take the frames from.
+     * @param queue       The queue to offer the frames to.
+     * @param utteranceId The utterance that the audio leads into.
+     * @return The number of frames offered.
+     */
+    int flushTo(AudioFramePool pool, AudioFrameQueue queue, long utteranceId) {
+        int count = 0;
+        int position = 0;
+        while (position < mSize) {
+            final AudioFrame frame = pool.acquire();
+            final int read = read(position, frame.getData(), frame.getCapacity());
+            frame.setSize(read);
+            frame.setUtteranceId(utteranceId);
+            frame.setSilent(true);
+            queue.offer(frame);
+            position += read;
+            count++;
+        }
+        clear();
+        return count;
+    }
+
+    /**
+     * Discards all the kept audio.
+     */
+    public void clear() {
+        mWrite = 0;
+        mSize = 0;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+
+/**
+ * A {@link StreamingRecognizeRequest} whose audio content may be backed by an {@link AudioFrame}.
+ *
+ * <p>The frame is wrapped without copying, and it is released as soon as gRPC has serialized the
+ * request into its transport buffers. Send these with {@link #STREAMING_RECOGNIZE} instead of
+ * {@link SpeechGrpc#METHOD_STREAMING_RECOGNIZE}.</p>
+ */
+final class AudioRequest {
+
+    /**
+     * Same as {@link SpeechGrpc#METHOD_STREAMING_RECOGNIZE}, but takes {@link AudioRequest}s.
+     */
+    static final MethodDescriptor<AudioRequest, StreamingRecognizeResponse> STREAMING_RECOGNIZE =
+            SpeechGrpc.METHOD_STREAMING_RECOGNIZE.toBuilder(new Marshaller(),
+                    SpeechGrpc.METHOD_STREAMING_RECOGNIZE.getResponseMarshaller())
+                    .build();
+
+    private final StreamingRecognizeRequest mRequest;
+
+    private final AudioFrame mFrame;
+
+    private AudioRequest(StreamingRecognizeRequest request, AudioFrame frame) {
+        mRequest = request;
+        mFrame = frame;
+    }
+
+    /**
+     * Creates the first request of a stream.
+     *
+     * @param config The configuration of the stream.
+     * @return A new request.
+     */
+    static AudioRequest config(StreamingRecognitionConfig config) {
+        return new AudioRequest(StreamingRecognizeRequest.newBuilder()
+                .setStreamingConfig(config)
+                .build(), null);
+    }
+
+    /**
+     * Creates a request that carries the audio in the specified {@code frame}. This retains the
+     * frame until the request is serialized.
+     *
+     * @param frame The audio data.
+     * @return A new request.
+     */
+    static AudioRequest audio(AudioFrame frame) {
+        frame.retain();
+        return new AudioRequest(StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(frame.asByteString())
+                .build(), frame);
+    }
+
+    private static class Marshaller implements MethodDescriptor.Marshaller<AudioRequest> {
+
+        private final MethodDescriptor.Marshaller<StreamingRecognizeRequest> mDelegate =
+                SpeechGrpc.METHOD_STREAMING_RECOGNIZE.getRequestMarshaller();
+
+        @Override
+        public InputStream stream(AudioRequest value) {
+            final InputStream stream = mDelegate.stream(value.mRequest);
+            if (value.mFrame == null) {
+                return stream;
+            }
+            return new FrameInputStream(stream, value.mFrame);
+        }
+
+        @Override
+        public AudioRequest parse(InputStream stream) {
+            return new AudioRequest(mDelegate.parse(stream), null);
+        }
+
+    }
+
+    /**
+     * Releases the {@link AudioFrame} once the serialized request has been fully consumed.
+     */
+    private static class FrameInputStream extends InputStream implements Drainable, KnownLength {
+
+        private final InputStream mDelegate;
+
+        private AudioFrame mFrame;
+
+        FrameInputStream(InputStream delegate, AudioFrame frame) {
+            mDelegate = delegate;
+            mFrame = frame;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int count = 0;
+            if (mDelegate instanceof Drainable) {
+                count = ((Drainable) mDelegate).drainTo(target);
+            } else {
+                final byte[] buffer = new byte[4096];
+                int read;
+                while ((read = mDelegate.read(buffer)) != -1) {
+                    target.write(buffer, 0, read);
+                    count += read;
+                }
+            }
+            releaseFrame();
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = mDelegate.read();
+            if (b == -1) {
+                releaseFrame();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = mDelegate.read(b, off, len);
+            if (read == -1) {
+                releaseFrame();
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mDelegate.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            releaseFrame();
+            mDelegate.close();
+        }
+
+        private void releaseFrame() {
+            if (mFrame != null) {
+                mFrame.release();
+                mFrame = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * Sends the audio of a single {@code streamingRecognize} call, at the pace that gRPC can take it.
+ *
+ * <p>Audio that gRPC is not ready for waits in an {@link OutboundAudioQueue}, and is sent as soon
+ * as the transport is ready again. When the queue is full, the {@link Listener} decides how long
+ * to wait for room before the oldest silence is dropped. Audio is compressed with
+ * {@link FlacEncoder} if the configuration asks for FLAC.</p>
+ *
+ * <p>This class does not depend on the Android framework, so that the load driver sends its
+ * streams exactly the way {@link SpeechService} does.</p>
+ */
+class AudioStream implements ClientResponseObserver<AudioRequest, StreamingRecognizeResponse> {
+
+    /**
+     * Receives the responses of the call, and the events of the request side.
+     */
+    interface Listener extends StreamObserver<StreamingRecognizeResponse> {
+
+        /**
+         * Called when the call first becomes ready to send audio.
+         */
+        void onReady();
+
+        /**
+         * Called when the network cannot keep up, and the queue has no room for more audio.
+         *
+         * @return How long to wait for room, in milliseconds, before audio is dropped.
+         */
+        long onOutboundFull();
+
+        /**
+         * Called for each piece of audio dropped from the queue.
+         *
+         * @param offset Where the audio would have been in the stream, in bytes of LINEAR16.
+         * @param size   The size of the audio in bytes of LINEAR16.
+         */
+        void onAudioDropped(long offset, int size);
+
+    }
+
+    private final Listener mListener;
+
+    private final SpeechStats mStats;
+
+    private final int mSampleRate;
+
+    /** Compresses the audio of this stream, or {@code null} to send LINEAR16 as is. */
+    private final FlacEncoder mEncoder;
+
+    /** Adapts to the pace of this stream, or {@code null}. */
+    private final FrameAggregator mAggregator;
+
+    private final StreamObserver<AudioRequest> mRequestObserver;
+
+    private ClientCallStreamObserver<AudioRequest> mCall;
+
+    // The fields below are guarded by this stream.
+
+    /** The audio that gRPC is not ready to send yet. */
+    private final OutboundAudioQueue mOutbound;
+
+    /** Whether to half-close the call once {@link #mOutbound} is sent. */
+    private boolean mFinishing;
+
+    /** Whether the call has ended; no more audio can be sent. */
+    private boolean mClosed;
+
+    /** When the transport last stopped accepting audio, or 0 if it is accepting it. */
+    private volatile long mStalledMillis;
+
+    private long mSentBytes;
+
+    /** The LINEAR16 audio written to gRPC, in bytes; where the queued audio starts. */
+    private long mWrittenBytes;
+
+    private final OutboundAudioQueue.DropListener mDropListener =
+            new OutboundAudioQueue.DropListener() {
+                @Override
+                public void onDropped(int offset, int size) {
+                    mListener.onAudioDropped(mWrittenBytes + offset, size);
+                }
+            };
+
+    private int mSentRequests;
+
+    private boolean mReady;
+
+    /**
+     * Starts the call, and sends the configuration.
+     *
+     * @param channel         The channel to the Speech API.
+     * @param callOptions     The options of the call.
+     * @param config          The configuration of the stream.
+     * @param maxQueuedMillis The most audio to hold while gRPC is not ready to send it.
+     * @param aggregator      Joins the audio into chunks for this stream, or {@code null}.
+     * @param stats           Receives the statistics of the stream.
+     * @param listener        Receives the responses.
+     */
+    AudioStream(Channel channel, CallOptions callOptions, StreamingRecognitionConfig config,
+            int maxQueuedMillis, FrameAggregator aggregator, SpeechStats stats,
+            Listener listener) {
+        mListener = listener;
+        mStats = stats;
+        mSampleRate = config.getConfig().getSampleRateHertz();
+        mEncoder = config.getConfig().getEncoding() == RecognitionConfig.AudioEncoding.FLAC
+                ? new FlacEncoder(mSampleRate) : null;
+        mAggregator = aggregator;
+        mOutbound = new OutboundAudioQueue(
+                AudioHistory.capacityFor(maxQueuedMillis, mSampleRate));
+        mRequestObserver = ClientCalls.asyncBidiStreamingCall(
+                channel.newCall(AudioRequest.STREAMING_RECOGNIZE, callOptions), this);
+        mRequestObserver.onNext(AudioRequest.config(config));
+        mSentRequests++;
+        mStats.onStreamOpened();
+    }
+
+    /**
+     * Creates the configuration of a stream of speech.
+     *
+     * @param languageCode The language of the speech.
+     * @param encoding     Either {@link RecognitionConfig.AudioEncoding#LINEAR16} or
+     *                     {@link RecognitionConfig.AudioEncoding#FLAC}.
+     * @param sampleRate   The sample rate of the audio.
+     * @param continuous   {@code true} to recognize through pauses, with word time offsets.
+     * @return The configuration.
+     */
+    static StreamingRecognitionConfig config(String languageCode,
+            RecognitionConfig.AudioEncoding encoding, int sampleRate, boolean continuous) {
+        return StreamingRecognitionConfig.newBuilder()
+                .setConfig(RecognitionConfig.newBuilder()
+                        .setLanguageCode(languageCode)
+                        .setEncoding(encoding)
+                        .setSampleRateHertz(sampleRate)
+                        .setEnableWordTimeOffsets(continuous)
+                        .build())
+                .setInterimResults(true)
+                .setSingleUtterance(!continuous)
+                .build();
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<AudioRequest> requests) {
+        mCall = requests;
+        requests.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                if (!mReady) {
+                    mReady = true;
+                    mListener.onReady();
+                }
+                // The server has acknowledged the audio that filled the window.
+                final long stalled = mStalledMillis;
+                if (stalled != 0) {
+                    mStalledMillis = 0;
+                    if (mAggregator != null) {
+                        mAggregator.onRoundTrip(now() - stalled);
+                    }
+                }
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Sends audio if gRPC is ready for it, or queues it until it is.
+     *
+     * @param frame The audio data in LINEAR16. The caller keeps its reference.
+     */
+    synchronized void send(AudioFrame frame) {
+        if (mClosed) {
+            return;
+        }
+        mSentBytes += frame.getSize();
+        final boolean ready = mOutbound.isEmpty() && mCall.isReady();
+        if (mAggregator != null) {
+            mAggregator.onSent(ready);
+        }
+        if (ready) {
+            write(frame);
+            return;
+        }
+        if (mStalledMillis == 0) {
+            mStalledMillis = now();
+        }
+        if (!mOutbound.hasRoom(frame.getSize())) {
+            awaitRoom(frame.getSize(), mListener.onOutboundFull());
+            if (mClosed) {
+                return;
+            }
+            final int dropped = mOutbound.makeRoom(frame.getSize(), mDropListener);
+            if (dropped > 0) {
+                mStats.addOutboundDroppedFrames(dropped);
+            }
+        }
+        final int before = mOutbound.getBytes();
+        mOutbound.add(frame);
+        mStats.addOutboundQueuedBytes(mOutbound.getBytes() - before);
+    }
+
+    private void awaitRoom(int size, long timeoutMillis) {
+        final long deadline = now() + timeoutMillis;
+        long remaining;
+        while (!mClosed && !mOutbound.hasRoom(size) && (remaining = deadline - now()) > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the queued audio for as long as gRPC is ready for it.
+     */
+    private synchronized void drain() {
+        if (mClosed) {
+            return;
+        }
+        final int before = mOutbound.getBytes();
+        AudioFrame frame;
+        while (mCall.isReady() && (frame = mOutbound.poll()) != null) {
+            write(frame);
+            frame.release();
+        }
+        if (before != mOutbound.getBytes()) {
+            mStats.addOutboundQueuedBytes(mOutbound.getBytes() - before);
+            notifyAll();
+        }
+        if (mFinishing && mOutbound.isEmpty()) {
+            halfClose();
+        }
+    }
+
+    private void write(AudioFrame frame) {
+        // Count the payload as it goes over the wire; FLAC is smaller than the PCM.
+        final int payload;
+        if (mEncoder != null) {
+            final AudioFrame encoded = mEncoder.encode(frame);
+            payload = encoded.getSize();
+            mRequestObserver.onNext(AudioRequest.audio(encoded));
+            encoded.release();
+        } else {
+            payload = frame.getSize();
+            mRequestObserver.onNext(AudioRequest.audio(frame));
+        }
+        mSentRequests++;
+        mWrittenBytes += frame.getSize();
+        mStats.onAudioSent(payload);
+        mStats.getChunkMillis().record(bytesToMillis(frame.getSize()));
+    }
+
+    /**
+     * Half-closes the call once the queued audio is sent.
+     */
+    synchronized void finish() {
+        if (mClosed || mFinishing) {
+            return;
+        }
+        mFinishing = true;
+        if (mOutbound.isEmpty()) {
+            halfClose();
+        }
+    }
+
+    private void halfClose() {
+        mClosed = true;
+        mRequestObserver.onCompleted();
+        mStats.getRequestsPerStream().record(mSentRequests);
+    }
+
+    /**
+     * Discards the queued audio when the call has ended.
+     */
+    private synchronized void close() {
+        mClosed = true;
+        mStats.addOutboundQueuedBytes(-mOutbound.getBytes());
+        mOutbound.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return The amount of LINEAR16 audio passed to {@link #send(AudioFrame)}, in milliseconds.
+     */
+    synchronized long getSentMillis() {
+        return bytesToMillis(mSentBytes);
+    }
+
+    long bytesToMillis(long bytes) {
+        return bytes * 1000 / 2 / mSampleRate;
+    }
+
+    @Override
+    public void onNext(StreamingRecognizeResponse response) {
+        mListener.onNext(response);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        close();
+        mListener.onError(t);
+    }
+
+    @Override
+    public void onCompleted() {
+        close();
+        mListener.onCompleted();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * The default {@link VoiceActivityDetector}.
+ *
+ * <p>Each frame is reduced to its mean energy and zero-crossing rate in a single pass. The energy
+ * is compared against a noise floor that keeps adapting to the environment, so a steady fan or
+ * street noise does not count as speech. The floor is calibrated on the quietest audio of the
+ * first few hundred milliseconds, and follows the environment at a speed that does not depend on
+ * the size of the frames. A frame starts speech when it is well above the noise floor, and speech
+ * continues as long as frames stay above a lower threshold (hysteresis). Loud frames that cross
+ * zero too often are treated as noise. After speech stops, the detector reports
+ * {@link Activity#HANGOVER} for a while before it reports {@link Activity#SILENCE}.</p>
+ */
+public class EnergyVoiceActivityDetector implements VoiceActivityDetector {
+
+    private static final int DEFAULT_HANGOVER_MILLIS = 2000;
+
+    /** Frames quieter than this RMS amplitude are never speech. */
+    private static final double MIN_SPEECH_RMS = 150;
+    private static final double MIN_SPEECH_ENERGY = MIN_SPEECH_RMS * MIN_SPEECH_RMS;
+
+    /** Energy ratio over the noise floor required to start speech (about 9 dB). */
+    private static final double ONSET_RATIO = 8.0;
+
+    /** Energy ratio over the noise floor required to continue speech (about 5 dB). */
+    private static final double RELEASE_RATIO = 3.0;
+
+    /** Frames with more zero crossings per sample than this look like broadband noise. */
+    private static final double MAX_SPEECH_ZCR = 0.35;
+
+    /** Unless they are this much louder than the noise floor (about 15 dB). */
+    private static final double NOISY_SPEECH_RATIO = 32.0;
+
+    /**
+     * The noise floor starts at no more than this (an RMS of about 400), which is louder than a
+     * quiet room but quieter than speech, so that a user who is already talking when recording
+     * starts does not set the floor.
+     */
+    private static final double MAX_INITIAL_NOISE_ENERGY = 400 * 400;
+
+    /** For this long after the start, the noise floor drops to the quietest audio right away. */
+    private static final int CALIBRATION_MILLIS = 300;
+
+    /** The time constant of the noise floor following quieter audio. */
+    private static final double NOISE_FALL_MILLIS = 180;
+
+    /** The time constant of the noise floor following louder audio outside of speech. */
+    private static final double NOISE_RISE_MILLIS = 2000;
+
+    /** The time constant of the noise floor following louder audio during speech. */
+    private static final double NOISE_RISE_MILLIS_IN_SPEECH = 40000;
+
+    private final int mHangoverMillis;
+
+    private int mSampleRate;
+
+    private int mHangoverSamples;
+
+    /** The number of samples left in the calibration of the noise floor. */
+    private int mCalibrationSamples;
+
+    private int mRemainingHangoverSamples;
+
+    /** The estimated energy of the background noise, or a negative value if unknown. */
+    private double mNoiseEnergy = -1;
+
+    public EnergyVoiceActivityDetector() {
+        this(DEFAULT_HANGOVER_MILLIS);
+    }
+
+    /**
+     * @param hangoverMillis How long an utterance continues after the last speech is heard.
+     */
+    public EnergyVoiceActivityDetector(int hangoverMillis) {
+        mHangoverMillis = hangoverMillis;
+    }
+
+    @Override
+    public void start(int sampleRate) {
+        mSampleRate = sampleRate;
+        mHangoverSamples = (int) ((long) mHangoverMillis * sampleRate / 1000);
+        mCalibrationSamples = (int) ((long) CALIBRATION_MILLIS * sampleRate / 1000);
+        mRemainingHangoverSamples = 0;
+        mNoiseEnergy = -1;
+    }
+
+    @Override
+    public Activity process(byte[] data, int size) {
+        final int samples = size / 2;
+        if (samples == 0) {
+            return mRemainingHangoverSamples > 0 ? Activity.HANGOVER : Activity.SILENCE;
+        }
+        long sumOfSquares = 0;
+        int zeroCrossings = 0;
+        int previous = 0;
+        for (int i = 0; i < samples * 2; i += 2) {
+            // The buffer has LINEAR16 in little endian.
+            final int s = (data[i] & 0xff) | (data[i + 1] << 8);
+            sumOfSquares += s * s;
+            if ((s ^ previous) < 0) {
+                zeroCrossings++;
+            }
+            previous = s;
+        }
+        final double energy = (double) sumOfSquares / samples;
+        final double zcr = (double) zeroCrossings / samples;
+        if (mNoiseEnergy < 0) {
+            mNoiseEnergy = Math.min(energy, MAX_INITIAL_NOISE_ENERGY);
+        } else if (mCalibrationSamples > 0) {
+            mNoiseEnergy = Math.min(mNoiseEnergy, energy);
+        }
+        mCalibrationSamples -= samples;
+
+        final boolean inUtterance = mRemainingHangoverSamples > 0;
+        final double ratio = energy / Math.max(mNoiseEnergy, 1.0);
+        boolean speech = energy > MIN_SPEECH_ENERGY
+                && ratio > (inUtterance ? RELEASE_RATIO : ONSET_RATIO);
+        if (speech && zcr > MAX_SPEECH_ZCR && ratio < NOISY_SPEECH_RATIO) {
+            speech = false;
+        }
+
+        // Follow the noise floor; only slowly upwards so that speech does not raise it much. The
+        // rate depends on the length of the frame, so that the floor moves at the same speed
+        // whatever the size of the buffers.
+        final double timeConstant = energy < mNoiseEnergy ? NOISE_FALL_MILLIS
+                : speech ? NOISE_RISE_MILLIS_IN_SPEECH : NOISE_RISE_MILLIS;
+        final double rate = 1 - Math.exp(-1000.0 * samples / mSampleRate / timeConstant);
+        mNoiseEnergy += (energy - mNoiseEnergy) * rate;
+
+        if (speech) {
+            mRemainingHangoverSamples = mHangoverSamples;
+            return Activity.SPEECH;
+        }
+        if (mRemainingHangoverSamples > 0) {
+            mRemainingHangoverSamples -= samples;
+            return Activity.HANGOVER;
+        }
+        return Activity.SILENCE;
+    }
+
+    /**
+     * @return The estimated energy of the background noise, or a negative value if unknown.
+     */
+    double getNoiseEnergy() {
+        return mNoiseEnergy;
+    }
+
+}
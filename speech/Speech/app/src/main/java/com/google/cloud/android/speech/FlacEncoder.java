@@ -0,0 +1,534 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Incrementally encodes LINEAR16 mono audio into a FLAC stream.
+ *
+ * <p>Every chunk passed to {@link #encode(byte[], int, byte[], int)} becomes one FLAC frame, so
+ * encoding adds no latency. The stream uses variable block sizes, the fixed linear predictors and
+ * partitioned Rice coding of the residual, falling back to verbatim samples when that is smaller.
+ * The first chunk of a stream is preceded by the {@code fLaC} marker and a STREAMINFO block.</p>
+ *
+ * <p>This class does not allocate once its buffers have grown to the largest chunk size.</p>
+ */
+public class FlacEncoder {
+
+    /** The largest frame header and footer around the subframe, in bytes. */
+    private static final int FRAME_OVERHEAD = 19;
+
+    /** The size of the {@code fLaC} marker and the STREAMINFO block. */
+    private static final int STREAM_HEADER_SIZE = 4 + 4 + 34;
+
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int BITS_PER_SAMPLE = 16;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final int mSampleRate;
+
+    private final BitWriter mWriter = new BitWriter();
+
+    private AudioFramePool mPool;
+
+    private int[] mSamples = new int[0];
+
+    private int[] mResidual = new int[0];
+
+    private final long[] mPartitionSums = new long[1 << MAX_PARTITION_ORDER];
+
+    /** The partition order picked by {@link #computeResidual(int, int)}. */
+    private int mPartitionOrder;
+
+    private long mSampleNumber;
+
+    /**
+     * @param sampleRate The sample rate of the audio.
+     */
+    public FlacEncoder(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * @return The sample rate of the audio.
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Calculates the largest output of {@link #encode(byte[], int, byte[], int)}.
+     *
+     * @param size The size of the LINEAR16 input in bytes.
+     * @return The required size of the output buffer in bytes.
+     */
+    public static int getMaxEncodedSize(int size) {
+        return STREAM_HEADER_SIZE + FRAME_OVERHEAD + size;
+    }
+
+    /**
+     * Encodes the next chunk of audio into an {@link AudioFrame} from a pool owned by this
+     * encoder.
+     *
+     * @param frame The audio data in LINEAR16.
+     * @return A new frame with the FLAC data. The caller is responsible for releasing it.
+     */
+    public AudioFrame encode(AudioFrame frame) {
+        final int capacity = getMaxEncodedSize(frame.getCapacity());
+        if (mPool == null || mPool.getFrameCapacity() < capacity) {
+            mPool = new AudioFramePool(capacity);
+        }
+        final AudioFrame encoded = mPool.acquire();
+        encoded.setSize(encode(frame.getData(), frame.getSize(), encoded.getData(), 0));
+        return encoded;
+    }
+
+    /**
+     * Encodes the next chunk of audio.
+     *
+     * @param pcm    The audio data in LINEAR16, little endian, mono.
+     * @param size   The size of the actual data in {@code pcm}.
+     * @param out    The buffer to write the FLAC data to. It must have at least
+     *               {@link #getMaxEncodedSize(int)} bytes after {@code offset}.
+     * @param offset The position in {@code out} to start writing at.
+     * @return The number of bytes written.
+     */
+    public int encode(byte[] pcm, int size, byte[] out, int offset) {
+        final int blockSize = size / 2;
+        if (blockSize == 0) {
+            return 0;
+        }
+        if (blockSize > 65536) {
+            throw new IllegalArgumentException("Too many samples in one chunk: " + blockSize);
+        }
+        if (mSamples.length < blockSize) {
+            mSamples = new int[blockSize];
+            mResidual = new int[blockSize];
+        }
+        for (int i = 0; i < blockSize; i++) {
+            mSamples[i] = (short) ((pcm[i * 2] & 0xff) | (pcm[i * 2 + 1] << 8));
+        }
+        final BitWriter w = mWriter;
+        w.reset(out, offset);
+        if (mSampleNumber == 0) {
+            writeStreamHeader(w);
+        }
+        final int frameStart = w.position();
+        writeFrameHeader(w, blockSize);
+        writeSubframe(w, blockSize);
+        w.alignToByte();
+        w.write(crc16(out, frameStart, w.position()), 16);
+        mSampleNumber += blockSize;
+        return w.position() - offset;
+    }
+
+    private void writeStreamHeader(BitWriter w) {
+        w.write('f', 8);
+        w.write('L', 8);
+        w.write('a', 8);
+        w.write('C', 8);
+        // Metadata block header: last block, STREAMINFO, 34 bytes.
+        w.write(0x80, 8);
+        w.write(34, 24);
+        // The block size varies from chunk to chunk.
+        w.write(16, 16);
+        w.write(65535, 16);
+        // Unknown min/max frame size.
+        w.write(0, 24);
+        w.write(0, 24);
+        w.write(mSampleRate, 20);
+        w.write(0, 3); // 1 channel
+        w.write(BITS_PER_SAMPLE - 1, 5);
+        // Unknown total samples and MD5 signature.
+        w.write(0, 4);
+        w.write(0, 32);
+        for (int i = 0; i < 4; i++) {
+            w.write(0, 32);
+        }
+    }
+
+    private void writeFrameHeader(BitWriter w, int blockSize) {
+        final int start = w.position();
+        // Sync code, reserved bit, variable block size.
+        w.write(0xfff9, 16);
+        // Block size: 16 bits at the end of the header.
+        w.write(0x7, 4);
+        final int sampleRateCode = getSampleRateCode(mSampleRate);
+        w.write(sampleRateCode, 4);
+        // Mono, 16 bits per sample, reserved bit.
+        w.write(0, 4);
+        w.write(0x4, 3);
+        w.write(0, 1);
+        writeUtf8Number(w, mSampleNumber);
+        w.write(blockSize - 1, 16);
+        if (sampleRateCode == 0xc) {
+            w.write(mSampleRate / 1000, 8);
+        } else if (sampleRateCode == 0xd) {
+            w.write(mSampleRate, 16);
+        } else if (sampleRateCode == 0xe) {
+            w.write(mSampleRate / 10, 16);
+        }
+        w.write(crc8(w.buffer(), start, w.position()), 8);
+    }
+
+    private void writeSubframe(BitWriter w, int blockSize) {
+        final int[] x = mSamples;
+        boolean constant = true;
+        for (int i = 1; i < blockSize && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            w.write(SUBFRAME_CONSTANT << 1, 8);
+            w.write(x[0], BITS_PER_SAMPLE);
+            return;
+        }
+        final int order = selectFixedOrder(blockSize);
+        if (order >= 0) {
+            final long bits = computeResidual(order, blockSize);
+            if (bits < (long) blockSize * BITS_PER_SAMPLE) {
+                writeFixedSubframe(w, order, blockSize);
+                return;
+            }
+        }
+        w.write(SUBFRAME_VERBATIM << 1, 8);
+        for (int i = 0; i < blockSize; i++) {
+            w.write(x[i], BITS_PER_SAMPLE);
+        }
+    }
+
+    /**
+     * Picks the fixed predictor that leaves the smallest residual.
+     *
+     * @return The predictor order, or -1 if the block is too short for prediction.
+     */
+    private int selectFixedOrder(int blockSize) {
+        if (blockSize <= MAX_FIXED_ORDER) {
+            return -1;
+        }
+        final int[] x = mSamples;
+        long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+        int last0 = x[MAX_FIXED_ORDER - 1];
+        int last1 = last0 - x[MAX_FIXED_ORDER - 2];
+        int last2 = last1 - (x[MAX_FIXED_ORDER - 2] - x[MAX_FIXED_ORDER - 3]);
+        int last3 = last2 - (x[MAX_FIXED_ORDER - 2] - 2 * x[MAX_FIXED_ORDER - 3]
+                + x[MAX_FIXED_ORDER - 4]);
+        for (int i = MAX_FIXED_ORDER; i < blockSize; i++) {
+            final int r0 = x[i];
+            final int r1 = r0 - last0;
+            final int r2 = r1 - last1;
+            final int r3 = r2 - last2;
+            final int r4 = r3 - last3;
+            e0 += Math.abs(r0);
+            e1 += Math.abs(r1);
+            e2 += Math.abs(r2);
+            e3 += Math.abs(r3);
+            e4 += Math.abs(r4);
+            last0 = r0;
+            last1 = r1;
+            last2 = r2;
+            last3 = r3;
+        }
+        int order = 0;
+        long min = e0;
+        if (e1 < min) {
+            order = 1;
+            min = e1;
+        }
+        if (e2 < min) {
+            order = 2;
+            min = e2;
+        }
+        if (e3 < min) {
+            order = 3;
+            min = e3;
+        }
+        if (e4 < min) {
+            order = 4;
+        }
+        return order;
+    }
+
+    /**
+     * Computes the residual of the fixed predictor and picks the Rice partitioning for it.
+     *
+     * @return An upper bound of the number of bits needed for the subframe.
+     */
+    private long computeResidual(int order, int blockSize) {
+        final int[] x = mSamples;
+        final int[] r = mResidual;
+        for (int i = order; i < blockSize; i++) {
+            switch (order) {
+                case 0:
+                    r[i] = x[i];
+                    break;
+                case 1:
+                    r[i] = x[i] - x[i - 1];
+                    break;
+                case 2:
+                    r[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                    break;
+                case 3:
+                    r[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                    break;
+                default:
+                    r[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                    break;
+            }
+        }
+        // Sum the folded residual over the finest partitioning, then merge partitions upwards.
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER) {
+            final int next = maxPartitionOrder + 1;
+            if ((blockSize % (1 << next)) != 0 || (blockSize >> next) <= order) {
+                break;
+            }
+            maxPartitionOrder = next;
+        }
+        final long[] sums = mPartitionSums;
+        final int partitions = 1 << maxPartitionOrder;
+        final int partitionSize = blockSize >> maxPartitionOrder;
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            long sum = 0;
+            final int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                sum += fold(r[i]);
+            }
+            sums[p] = sum;
+        }
+        long bestBits = Long.MAX_VALUE;
+        int bestPartitionOrder = 0;
+        for (int po = maxPartitionOrder; po >= 0; po--) {
+            final int count = 1 << po;
+            if (po < maxPartitionOrder) {
+                for (int p = 0; p < count; p++) {
+                    sums[p] = sums[2 * p] + sums[2 * p + 1];
+                }
+            }
+            long bits = 4 + 2; // Partition order and coding method.
+            for (int p = 0; p < count; p++) {
+                final int samples = (blockSize >> po) - (p == 0 ? order : 0);
+                bits += 4 + riceBits(sums[p], samples);
+            }
+            if (bits <= bestBits) {
+                bestBits = bits;
+                bestPartitionOrder = po;
+            }
+        }
+        mPartitionOrder = bestPartitionOrder;
+        return bestBits + order * BITS_PER_SAMPLE;
+    }
+
+    private void writeFixedSubframe(BitWriter w, int order, int blockSize) {
+        final int[] x = mSamples;
+        final int[] r = mResidual;
+        final int partitionOrder = mPartitionOrder;
+        w.write((SUBFRAME_FIXED | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            w.write(x[i], BITS_PER_SAMPLE);
+        }
+        w.write(0, 2); // Rice coding with 4-bit parameters.
+        w.write(partitionOrder, 4);
+        final int partitions = 1 << partitionOrder;
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            final int end = (p + 1) * (blockSize >> partitionOrder);
+            long sum = 0;
+            for (int j = i; j < end; j++) {
+                sum += fold(r[j]);
+            }
+            final int k = riceParameter(sum, end - i);
+            w.write(k, 4);
+            for (; i < end; i++) {
+                final long u = fold(r[i]);
+                w.writeUnary((int) (u >>> k));
+                if (k > 0) {
+                    w.write((int) u, k);
+                }
+            }
+        }
+    }
+
+    private static long fold(int residual) {
+        return residual >= 0 ? (long) residual << 1 : ((-(long) residual) << 1) - 1;
+    }
+
+    private static int riceParameter(long sum, int samples) {
+        int best = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+            final long bits = (long) samples * (k + 1) + (sum >> k);
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    private static long riceBits(long sum, int samples) {
+        final int k = riceParameter(sum, samples);
+        return (long) samples * (k + 1) + (sum >> k);
+    }
+
+    private static int getSampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 8000:
+                return 0x4;
+            case 16000:
+                return 0x5;
+            case 22050:
+                return 0x6;
+            case 24000:
+                return 0x7;
+            case 32000:
+                return 0x8;
+            case 44100:
+                return 0x9;
+            case 48000:
+                return 0xa;
+            case 96000:
+                return 0xb;
+        }
+        if (sampleRate % 1000 == 0 && sampleRate / 1000 < 256) {
+            return 0xc;
+        } else if (sampleRate < 65536) {
+            return 0xd;
+        } else if (sampleRate % 10 == 0 && sampleRate / 10 < 65536) {
+            return 0xe;
+        }
+        return 0;
+    }
+
+    private static void writeUtf8Number(BitWriter w, long value) {
+        if (value < 0x80) {
+            w.write((int) value, 8);
+            return;
+        }
+        int bytes = 2;
+        while (bytes < 7 && value >= 1L << (5 * bytes + 1)) {
+            bytes++;
+        }
+        int shift = (bytes - 1) * 6;
+        w.write((0xff00 >> bytes) & 0xff | (int) (value >>> shift), 8);
+        while (shift > 0) {
+            shift -= 6;
+            w.write(0x80 | (int) ((value >>> shift) & 0x3f), 8);
+        }
+    }
+
+    static int crc8(byte[] data, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    static int crc16(byte[] data, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Writes big-endian bit fields into a byte array.
+     */
+    private static class BitWriter {
+
+        private byte[] mBuffer;
+
+        private int mPosition;
+
+        private long mAccumulator;
+
+        private int mBits;
+
+        void reset(byte[] buffer, int offset) {
+            mBuffer = buffer;
+            mPosition = offset;
+            mAccumulator = 0;
+            mBits = 0;
+        }
+
+        /**
+         * Writes the lowest {@code count} bits of {@code value}.
+         */
+        void write(int value, int count) {
+            mAccumulator = (mAccumulator << count) | (value & (0xffffffffL >>> (32 - count)));
+            mBits += count;
+            while (mBits >= 8) {
+                mBits -= 8;
+                mBuffer[mPosition++] = (byte) (mAccumulator >>> mBits);
+            }
+        }
+
+        /**
+         * Writes {@code value} zeros followed by a one.
+         */
+        void writeUnary(int value) {
+            while (value >= 24) {
+                write(0, 24);
+                value -= 24;
+            }
+            write(1, value + 1);
+        }
+
+        void alignToByte() {
+            if (mBits > 0) {
+                write(0, 8 - mBits);
+            }
+        }
+
+        /**
+         * @return The position of the next whole byte. Only meaningful when aligned.
+         */
+        int position() {
+            return mPosition;
+        }
+
+        byte[] buffer() {
+            return mBuffer;
+        }
+
+    }
+
+}
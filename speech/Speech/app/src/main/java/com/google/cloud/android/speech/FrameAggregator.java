@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Joins small {@link AudioFrame}s into chunks of a target duration, so that a stream is not
+ * flooded with tiny requests when {@link android.media.AudioRecord} reads only a few milliseconds
+ * at a time.
+ *
+ * <p>The chunk duration starts at the target and adapts to the connection. When the transport
+ * is not ready for another chunk, the server is acknowledging data more slowly than it is sent,
+ * so the chunks are doubled to cut the per-message overhead. They shrink back gradually while the
+ * transport keeps up. The chunks are also kept long enough that no more than
+ * {@value #MAX_CHUNKS_PER_ROUND_TRIP} of them are sent in one round trip.</p>
+ *
+ * <p>{@link #add(AudioFrame)} and {@link #flush()} must be called on one thread at a time. The
+ * methods that report the state of the connection can be called on any thread.</p>
+ */
+class FrameAggregator {
+
+    /** The longest chunk, regardless of the connection. */
+    static final int MAX_CHUNK_MILLIS = 500;
+
+    private static final int MAX_CHUNKS_PER_ROUND_TRIP = 8;
+
+    interface Sink {
+
+        /**
+         * Called with every chunk. The {@code chunk} is released after this method returns. Call
+         * {@link AudioFrame#retain()} to keep it longer.
+         *
+         * @param chunk The audio data.
+         */
+        void onChunk(AudioFrame chunk);
+    }
+
+    private final Sink mSink;
+
+    private final int mSampleRate;
+
+    private final int mTargetMillis;
+
+    private final AudioFramePool mPool;
+
+    /** The chunk that is being filled, or {@code null}. */
+    private AudioFrame mPending;
+
+    private volatile int mChunkMillis;
+
+    /** The smoothed round-trip time, or 0 if it is not known yet. */
+    private volatile long mRoundTripMillis;
+
+    /**
+     * @param sampleRate   The sample rate of the audio.
+     * @param targetMillis The preferred duration of a chunk.
+     * @param sink         Receives the chunks.
+     */
+    FrameAggregator(int sampleRate, int targetMillis, Sink sink) {
+        if (targetMillis <= 0 || targetMillis > MAX_CHUNK_MILLIS) {
+            throw new IllegalArgumentException("Invalid chunk duration: " + targetMillis);
+        }
+        mSink = sink;
+        mSampleRate = sampleRate;
+        mTargetMillis = targetMillis;
+        mChunkMillis = targetMillis;
+        mPool = new AudioFramePool(toBytes(MAX_CHUNK_MILLIS), 2);
+    }
+
+    /**
+     * @return The duration of the chunks currently sent.
+     */
+    int getChunkMillis() {
+        return mChunkMillis;
+    }
+
+    /**
+     * @return The size of the chunks currently sent, in bytes.
+     */
+    int getChunkBytes() {
+        return toBytes(mChunkMillis);
+    }
+
+    /**
+     * Adds audio. A frame that is at least as long as a chunk by itself is passed on as is.
+     *
+     * @param frame The audio data in LINEAR16. The caller keeps its reference.
+     */
+    void add(AudioFrame frame) {
+        final int chunkBytes = toBytes(mChunkMillis);
+        if (mPending == null && frame.getSize() >= chunkBytes) {
+            mSink.onChunk(frame);
+            return;
+        }
+        int position = 0;
+        while (position < frame.getSize()) {
+            if (mPending == null) {
+                mPending = mPool.acquire();
+                mPending.setSilent(true);
+            }
+            // A chunk is silent only if all of its audio is.
+            mPending.setSilent(mPending.isSilent() && frame.isSilent());
+            final int size = Math.min(frame.getSize() - position,
+                    Math.max(chunkBytes - mPending.getSize(), 0));
+            System.arraycopy(frame.getData(), position, mPending.getData(), mPending.getSize(),
+                    size);
+            mPending.setSize(mPending.getSize() + size);
+            position += size;
+            if (mPending.getSize() >= chunkBytes) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Passes on the audio added so far, even if it is shorter than a chunk.
+     */
+    void flush() {
+        final AudioFrame pending = mPending;
+        if (pending == null) {
+            return;
+        }
+        mPending = null;
+        if (pending.getSize() > 0) {
+            mSink.onChunk(pending);
+        }
+        pending.release();
+    }
+
+    /**
+     * Discards the audio added so far.
+     */
+    void clear() {
+        if (mPending != null) {
+            mPending.release();
+            mPending = null;
+        }
+    }
+
+    /**
+     * Reports whether the transport was ready when a chunk was sent.
+     *
+     * @param ready {@code false} if the chunk had to be buffered because the server has not
+     *              acknowledged the earlier ones yet.
+     */
+    void onSent(boolean ready) {
+        final int chunk = mChunkMillis;
+        final int min = getMinChunkMillis();
+        if (!ready) {
+            mChunkMillis = Math.min(Math.max(chunk * 2, min), MAX_CHUNK_MILLIS);
+        } else if (chunk > min) {
+            mChunkMillis = Math.max(chunk - Math.max(chunk / 8, 1), min);
+        } else {
+            mChunkMillis = min;
+        }
+    }
+
+    /**
+     * Reports a round trip to the server.
+     *
+     * @param millis The time between a request and its response.
+     */
+    void onRoundTrip(long millis) {
+        final long previous = mRoundTripMillis;
+        mRoundTripMillis = previous == 0 ? millis : (previous * 7 + millis) / 8;
+    }
+
+    private int getMinChunkMillis() {
+        return (int) Math.min(Math.max(mTargetMillis,
+                mRoundTripMillis / MAX_CHUNKS_PER_ROUND_TRIP), MAX_CHUNK_MILLIS);
+    }
+
+    private int toBytes(int millis) {
+        // Whole samples only.
+        return (int) ((long) mSampleRate * millis / 1000) * 2;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies in milliseconds.
+ *
+ * <p>Values are counted in buckets that grow exponentially, with 8 buckets for every power of
+ * two, so percentiles are accurate to within 12.5%. Recording a value is a few atomic
+ * increments and never allocates.</p>
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Enough buckets for any non-negative long. */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String mName;
+
+    /** Also records every value, or {@code null}. */
+    private final Histogram mParent;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    private final AtomicLong mSum = new AtomicLong();
+
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param name The name used in {@link #toString()}.
+     */
+    public Histogram(String name) {
+        this(name, null);
+    }
+
+    /**
+     * @param name   The name used in {@link #toString()}.
+     * @param parent A histogram that also records every value recorded in this one, such as an
+     *               aggregate of several sources, or {@code null}.
+     */
+    public Histogram(String name, Histogram parent) {
+        mName = name;
+        mParent = parent;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+        if (mParent != null) {
+            mParent.record(value);
+        }
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0 if there are none.
+     */
+    public double getMean() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * @return The largest recorded value, or 0 if there are none.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Estimates a percentile of the recorded values.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return An upper bound of the value at the percentile, or 0 if there are no values.
+     */
+    public long getPercentile(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Discards all the recorded values. Values recorded concurrently may be partially lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                mName, getCount(), getMean(), getPercentile(50), getPercentile(90),
+                getPercentile(99), getMax());
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+}
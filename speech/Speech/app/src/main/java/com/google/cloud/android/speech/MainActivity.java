@@ -23,15 +23,20 @@ import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.res.ResourcesCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -39,42 +44,55 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class MainActivity extends AppCompatActivity implements MessageDialogFragment.Listener {
 
+    private static final String TAG = "MainActivity";
+
     private static final String FRAGMENT_MESSAGE_DIALOG = "message_dialog";
 
-    private static final String STATE_RESULTS = "results";
+    private static final String TRANSCRIPT_LOG_NAME = "transcripts";
 
     private static final int REQUEST_RECORD_AUDIO_PERMISSION = 1;
 
-    private SpeechService mSpeechService;
+    // These are read on the threads of VoiceRecorder and ResultDispatcher, and set to null in
+    // onStop(); read each of them into a local once.
+    private volatile SpeechService mSpeechService;
 
-    private VoiceRecorder mVoiceRecorder;
+    private volatile VoiceRecorder mVoiceRecorder;
     private final VoiceRecorder.Callback mVoiceCallback = new VoiceRecorder.Callback() {
 
         @Override
         public void onVoiceStart() {
             showStatus(true);
-            if (mSpeechService != null) {
-                mSpeechService.startRecognizing(mVoiceRecorder.getSampleRate());
+            final SpeechService service = mSpeechService;
+            final VoiceRecorder recorder = mVoiceRecorder;
+            if (service != null && recorder != null) {
+                service.startRecognizing(recorder.getSampleRate());
             }
         }
 
         @Override
-        public void onVoice(byte[] data, int size) {
-            if (mSpeechService != null) {
-                mSpeechService.recognize(data, size);
+        public void onVoice(AudioFrame frame) {
+            final SpeechService service = mSpeechService;
+            if (service != null) {
+                service.recognize(frame);
             }
         }
 
         @Override
         public void onVoiceEnd() {
             showStatus(false);
-            if (mSpeechService != null) {
-                mSpeechService.finishRecognizing();
+            final SpeechService service = mSpeechService;
+            if (service != null) {
+                service.finishRecognizing();
             }
         }
 
@@ -119,15 +137,20 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         setSupportActionBar((Toolbar) findViewById(R.id.toolbar));
         mStatus = (TextView) findViewById(R.id.status);
         mText = (TextView) findViewById(R.id.text);
+        mText.setText(null, TextView.BufferType.EDITABLE);
 
         mRecyclerView = (RecyclerView) findViewById(R.id.recycler_view);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-        final ArrayList<String> results = savedInstanceState == null ? null :
-                savedInstanceState.getStringArrayList(STATE_RESULTS);
-        mAdapter = new ResultAdapter(results);
+        mAdapter = new ResultAdapter(getFilesDir(), TRANSCRIPT_LOG_NAME);
         mRecyclerView.setAdapter(mAdapter);
     }
 
+    @Override
+    protected void onDestroy() {
+        mAdapter.close();
+        super.onDestroy();
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -161,14 +184,6 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         super.onStop();
     }
 
-    @Override
-    protected void onSaveInstanceState(Bundle outState) {
-        super.onSaveInstanceState(outState);
-        if (mAdapter != null) {
-            outState.putStringArrayList(STATE_RESULTS, mAdapter.getResults());
-        }
-    }
-
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
             @NonNull int[] grantResults) {
@@ -204,6 +219,7 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
     private void startVoiceRecorder() {
         if (mVoiceRecorder != null) {
             mVoiceRecorder.stop();
+            reportDroppedFrames();
         }
         mVoiceRecorder = new VoiceRecorder(mVoiceCallback);
         mVoiceRecorder.start();
@@ -212,10 +228,17 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
     private void stopVoiceRecorder() {
         if (mVoiceRecorder != null) {
             mVoiceRecorder.stop();
+            reportDroppedFrames();
             mVoiceRecorder = null;
         }
     }
 
+    private void reportDroppedFrames() {
+        if (mSpeechService != null) {
+            mSpeechService.getStats().addDroppedFrames(mVoiceRecorder.getOverrunCount());
+        }
+    }
+
     private void showPermissionMessageDialog() {
         MessageDialogFragment
                 .newInstance(getString(R.string.permission_message))
@@ -240,25 +263,41 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
     private final SpeechService.Listener mSpeechServiceListener =
             new SpeechService.Listener() {
                 @Override
-                public void onSpeechRecognized(final String text, final boolean isFinal) {
-                    if (isFinal) {
-                        mVoiceRecorder.dismiss();
+                public void onSpeechRecognized(final String text) {
+                    // Called on a background thread, possibly after the activity has stopped.
+                    final SpeechService service = mSpeechService;
+                    final VoiceRecorder recorder = mVoiceRecorder;
+                    if (service != null && recorder != null && !service.isContinuous()) {
+                        recorder.dismiss();
                     }
-                    if (mText != null && !TextUtils.isEmpty(text)) {
+                    if (mText != null) {
                         runOnUiThread(new Runnable() {
                             @Override
                             public void run() {
-                                if (isFinal) {
-                                    mText.setText(null);
+                                mText.getEditableText().clear();
+                                if (!TextUtils.isEmpty(text)) {
                                     mAdapter.addResult(text);
                                     mRecyclerView.smoothScrollToPosition(0);
-                                } else {
-                                    mText.setText(text);
                                 }
                             }
                         });
                     }
                 }
+
+                @Override
+                public void onSpeechUpdated(final TranscriptDelta delta) {
+                    if (mText != null) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Only the changed part of the text is laid out again.
+                                final Editable text = mText.getEditableText();
+                                text.replace(Math.min(delta.getStart(), text.length()),
+                                        text.length(), delta.getText());
+                            }
+                        });
+                    }
+                }
             };
 
     private static class ViewHolder extends RecyclerView.ViewHolder {
@@ -272,14 +311,69 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
 
     }
 
+    /**
+     * Shows the transcripts in {@link TranscriptLog}, newest first. The adapter only holds a few
+     * pages in memory, so the history can grow as long as the disk allows.
+     *
+     * <p>The log is only used on a background thread, so the UI thread never waits for the disk.
+     * Items are bound from the pages in memory, and any other page is loaded in the background
+     * and shown as soon as it is read.</p>
+     */
     private static class ResultAdapter extends RecyclerView.Adapter<ViewHolder> {
 
-        private final ArrayList<String> mResults = new ArrayList<>();
+        private static final int PAGE_SIZE = TranscriptLog.PAGE_SIZE;
 
-        ResultAdapter(ArrayList<String> results) {
-            if (results != null) {
-                mResults.addAll(results);
-            }
+        /** Opens, reads, writes and closes {@link #mLog}. */
+        private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        /**
+         * Only used on {@link #mExecutor}, except for {@link TranscriptLog#getCachedPage(int)};
+         * {@code null} if it could not be opened.
+         */
+        private volatile TranscriptLog mLog;
+
+        // The fields below are only used on the UI thread.
+
+        private final HashSet<Integer> mLoadingPages = new HashSet<>();
+
+        /** The page that the next transcript goes into. It is always in memory. */
+        private String[] mLastPage = new String[PAGE_SIZE];
+
+        private int mCount;
+
+        private boolean mOpened;
+
+        /** The transcripts added before the log was opened. */
+        private final ArrayList<String> mEarlyResults = new ArrayList<>();
+
+        private boolean mClosed;
+
+        ResultAdapter(final File directory, final String name) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int count = 0;
+                    final String[] lastPage = new String[PAGE_SIZE];
+                    try {
+                        mLog = new TranscriptLog(directory, name);
+                        count = mLog.size();
+                        for (int i = count - count % PAGE_SIZE; i < count; i++) {
+                            lastPage[i % PAGE_SIZE] = mLog.get(i);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error opening the transcript history.", e);
+                    }
+                    final int opened = count;
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onOpened(opened, lastPage);
+                        }
+                    });
+                }
+            });
         }
 
         @Override
@@ -289,21 +383,128 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
 
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
-            holder.text.setText(mResults.get(position));
+            final int index = mCount - 1 - position;
+            final int page = index / PAGE_SIZE;
+            final String[] texts = page == mCount / PAGE_SIZE ? mLastPage : getCachedPage(page);
+            // The log may not have written the end of a page that was just completed.
+            if (texts == null || texts[index % PAGE_SIZE] == null) {
+                holder.text.setText(null);
+                load(page);
+                return;
+            }
+            holder.text.setText(texts[index % PAGE_SIZE]);
         }
 
         @Override
         public int getItemCount() {
-            return mResults.size();
+            return mCount;
         }
 
-        void addResult(String result) {
-            mResults.add(0, result);
+        void addResult(final String result) {
+            if (mClosed) {
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mLog == null) {
+                        return;
+                    }
+                    try {
+                        mLog.append(result);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error writing the transcript history.", e);
+                    }
+                }
+            });
+            if (!mOpened) {
+                mEarlyResults.add(result);
+                return;
+            }
+            add(result);
             notifyItemInserted(0);
         }
 
-        public ArrayList<String> getResults() {
-            return mResults;
+        void close() {
+            mClosed = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mLog == null) {
+                        return;
+                    }
+                    try {
+                        mLog.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing the transcript history.", e);
+                    }
+                }
+            });
+            mExecutor.shutdown();
+        }
+
+        private void onOpened(int count, String[] lastPage) {
+            if (mClosed) {
+                return;
+            }
+            mOpened = true;
+            mCount = count;
+            mLastPage = lastPage;
+            for (String result : mEarlyResults) {
+                add(result);
+            }
+            mEarlyResults.clear();
+            notifyDataSetChanged();
+        }
+
+        private void add(String result) {
+            final int slot = mCount % PAGE_SIZE;
+            mLastPage[slot] = result;
+            mCount++;
+            if (slot == PAGE_SIZE - 1) {
+                // The log keeps the complete page in memory, too.
+                mLastPage = new String[PAGE_SIZE];
+            }
+        }
+
+        private String[] getCachedPage(int page) {
+            final TranscriptLog log = mLog;
+            return log != null ? log.getCachedPage(page) : null;
+        }
+
+        /**
+         * Reads a complete page into the memory of the log in the background, and shows its items
+         * once it is read.
+         */
+        private void load(final int page) {
+            if (mClosed || !mLoadingPages.add(page)) {
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean read = false;
+                    if (mLog != null) {
+                        try {
+                            mLog.get(page * PAGE_SIZE);
+                            read = true;
+                        } catch (IOException e) {
+                            Log.e(TAG, "Error reading the transcript history.", e);
+                        }
+                    }
+                    final boolean loaded = read;
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mLoadingPages.remove(page);
+                            if (!loaded || mClosed) {
+                                return;
+                            }
+                            notifyItemRangeChanged(mCount - (page + 1) * PAGE_SIZE, PAGE_SIZE);
+                        }
+                    });
+                }
+            });
         }
 
     }
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * The LINEAR16 audio of a stream that gRPC is not ready to send yet, bounded by its total size.
+ *
+ * <p>When there is no room for more audio, {@link #makeRoom(int)} drops the oldest frame that is
+ * {@linkplain AudioFrame#isSilent() silent}, and the oldest frame of all only if there is no
+ * silence to drop. Speech is usually surrounded by pauses, so this keeps as much of what was said
+ * as possible.</p>
+ *
+ * <p>The frames are kept in a ring, where a dropped frame leaves a hole until the ring is
+ * compacted, and the search for the oldest silence resumes where the last one stopped. Each
+ * operation takes constant time on average, however long the queue is.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+class OutboundAudioQueue {
+
+    /**
+     * Told where frames are dropped, so that the positions of the audio sent after them can be
+     * mapped back to where the audio was recorded.
+     */
+    interface DropListener {
+
+        /**
+         * @param offset The position of the dropped frame in the stream, in bytes from the oldest
+         *               frame in the queue.
+         * @param size   The size of the dropped frame in bytes.
+         */
+        void onDropped(int offset, int size);
+
+    }
+
+    private static final int INITIAL_SLOTS = 16;
+
+    private final int mCapacity;
+
+    /** The frames, oldest first from {@link #mHead}; {@code null} where a frame was dropped. */
+    private AudioFrame[] mSlots = new AudioFrame[INITIAL_SLOTS];
+
+    private int mHead;
+
+    /** The number of slots in use, including the holes. */
+    private int mLength;
+
+    /** The number of frames in the queue. */
+    private int mCount;
+
+    private int mSilentCount;
+
+    /** The slots before this offset from {@link #mHead} hold no silent frame. */
+    private int mSilenceScan;
+
+    /** The size of the frames in the slots before {@link #mSilenceScan}. */
+    private int mSilenceScanBytes;
+
+    private int mBytes;
+
+    /**
+     * @param capacity The maximum size of the queued audio in bytes.
+     */
+    OutboundAudioQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mCapacity = capacity;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return The size of the queued audio in bytes.
+     */
+    int getBytes() {
+        return mBytes;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @param size The size of a frame in bytes.
+     * @return {@code true} if a frame of the {@code size} can be added without dropping any.
+     */
+    boolean hasRoom(int size) {
+        return mBytes + size <= mCapacity;
+    }
+
+    /**
+     * Drops frames until a frame of the {@code size} can be added.
+     *
+     * @param size The size of the new frame in bytes.
+     * @return The number of frames dropped.
+     */
+    int makeRoom(int size) {
+        return makeRoom(size, null);
+    }
+
+    /**
+     * Drops frames until a frame of the {@code size} can be added.
+     *
+     * @param size     The size of the new frame in bytes.
+     * @param listener Told about each dropped frame, or {@code null}.
+     * @return The number of frames dropped.
+     */
+    int makeRoom(int size, DropListener listener) {
+        int dropped = 0;
+        while (mCount > 0 && !hasRoom(size)) {
+            final AudioFrame victim;
+            if (mSilentCount > 0) {
+                victim = removeOldestSilence(listener);
+            } else {
+                victim = poll();
+                if (listener != null) {
+                    listener.onDropped(0, victim.getSize());
+                }
+            }
+            victim.release();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Adds a frame, even if that exceeds the capacity. Call {@link #makeRoom(int)} first.
+     *
+     * @param frame The audio data in LINEAR16. The queue adds its own reference.
+     */
+    void add(AudioFrame frame) {
+        if (mLength == mSlots.length) {
+            if (mCount < mLength) {
+                compact();
+            } else {
+                grow();
+            }
+        }
+        mSlots[slot(mLength)] = frame.retain();
+        mLength++;
+        mCount++;
+        mBytes += frame.getSize();
+        if (frame.isSilent()) {
+            mSilentCount++;
+        }
+    }
+
+    /**
+     * Takes the oldest frame. The caller becomes responsible for releasing it.
+     *
+     * @return The frame, or {@code null} if the queue is empty.
+     */
+    AudioFrame poll() {
+        while (mLength > 0) {
+            final AudioFrame frame = mSlots[mHead];
+            mSlots[mHead] = null;
+            mHead = slot(1);
+            mLength--;
+            final boolean scanned = mSilenceScan > 0;
+            if (scanned) {
+                mSilenceScan--;
+            }
+            if (frame != null) {
+                if (scanned) {
+                    mSilenceScanBytes -= frame.getSize();
+                }
+                onRemoved(frame);
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases all the frames in the queue.
+     */
+    void clear() {
+        for (int i = 0; i < mLength; i++) {
+            final int index = slot(i);
+            if (mSlots[index] != null) {
+                mSlots[index].release();
+                mSlots[index] = null;
+            }
+        }
+        mHead = 0;
+        mLength = 0;
+        mCount = 0;
+        mSilentCount = 0;
+        mSilenceScan = 0;
+        mSilenceScanBytes = 0;
+        mBytes = 0;
+    }
+
+    /**
+     * Takes the oldest silent frame out of the queue. There must be one.
+     */
+    private AudioFrame removeOldestSilence(DropListener listener) {
+        while (true) {
+            final int index = slot(mSilenceScan);
+            final AudioFrame frame = mSlots[index];
+            mSilenceScan++;
+            if (frame == null) {
+                continue;
+            }
+            if (frame.isSilent()) {
+                mSlots[index] = null;
+                if (listener != null) {
+                    listener.onDropped(mSilenceScanBytes, frame.getSize());
+                }
+                onRemoved(frame);
+                // Keep the holes from outnumbering the frames.
+                if (mLength - mCount > mCount) {
+                    compact();
+                }
+                return frame;
+            }
+            mSilenceScanBytes += frame.getSize();
+        }
+    }
+
+    private void onRemoved(AudioFrame frame) {
+        mCount--;
+        mBytes -= frame.getSize();
+        if (frame.isSilent()) {
+            mSilentCount--;
+        }
+    }
+
+    /**
+     * Moves the frames together, in order, to remove the holes.
+     */
+    private void compact() {
+        int length = 0;
+        for (int i = 0; i < mLength; i++) {
+            final int index = slot(i);
+            final AudioFrame frame = mSlots[index];
+            if (frame != null) {
+                mSlots[index] = null;
+                mSlots[slot(length)] = frame;
+                length++;
+            }
+        }
+        mLength = length;
+        mSilenceScan = 0;
+        mSilenceScanBytes = 0;
+    }
+
+    private void grow() {
+        final AudioFrame[] slots = new AudioFrame[mSlots.length * 2];
+        for (int i = 0; i < mLength; i++) {
+            slots[i] = mSlots[slot(i)];
+        }
+        mSlots = slots;
+        mHead = 0;
+    }
+
+    /**
+     * @return The index of the slot at the {@code offset} from {@link #mHead}.
+     */
+    private int slot(int offset) {
+        return (mHead + offset) & (mSlots.length - 1);
+    }
+
+}
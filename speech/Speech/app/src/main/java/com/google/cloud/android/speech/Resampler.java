@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Incrementally converts LINEAR16 mono audio from one sample rate to another.
+ *
+ * <p>The conversion is a polyphase FIR filter: a Kaiser-windowed sinc low-pass filter that cuts
+ * off just below the lower of the two Nyquist frequencies, split into one set of coefficients for
+ * every output phase, so that each output sample costs a single short dot product. The filter
+ * state is carried from one chunk to the next, so the output does not depend on how the input is
+ * divided into chunks. When the two rates are the same, the audio is passed through unchanged.</p>
+ *
+ * <p>This class does not allocate once its buffers have grown to the largest chunk size.</p>
+ */
+public class Resampler {
+
+    /** The zero crossings of the sinc on each side of its center, at the lower rate. */
+    private static final int ZERO_CROSSINGS = 16;
+
+    /** Where the pass band ends, as a fraction of the lower Nyquist frequency. */
+    private static final double PASS_BAND = 0.92;
+
+    private static final double KAISER_BETA = 8;
+
+    private final int mInputRate;
+
+    private final int mOutputRate;
+
+    /** The interpolation factor. */
+    private final int mUp;
+
+    /** The decimation factor. */
+    private final int mDown;
+
+    /** The coefficients of each phase. */
+    private final int mTaps;
+
+    /** The coefficients of phase {@code p} are at {@code p * mTaps}, oldest sample first. */
+    private final float[] mCoefficients;
+
+    /** The last {@code mTaps - 1} input samples, followed by the current chunk. */
+    private float[] mBuffer;
+
+    /** Where the newest input sample of the next output is in {@link #mBuffer}. */
+    private int mPosition;
+
+    /** The phase of the next output. */
+    private int mPhase;
+
+    private AudioFramePool mPool;
+
+    /**
+     * @param inputRate  The sample rate of the input.
+     * @param outputRate The sample rate of the output.
+     */
+    public Resampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid sample rates: " + inputRate + ", " + outputRate);
+        }
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        final int gcd = gcd(inputRate, outputRate);
+        mUp = outputRate / gcd;
+        mDown = inputRate / gcd;
+        if (mUp == 1 && mDown == 1) {
+            mTaps = 0;
+            mCoefficients = null;
+            mBuffer = null;
+            return;
+        }
+        // The prototype filter runs at the input rate times mUp.
+        final double cutoff = PASS_BAND * 0.5 / Math.max(mUp, mDown);
+        final int length = (int) Math.ceil(ZERO_CROSSINGS / cutoff);
+        mTaps = (length + mUp - 1) / mUp;
+        mCoefficients = new float[mUp * mTaps];
+        final int prototypeLength = mUp * mTaps;
+        final double center = (prototypeLength - 1) / 2.0;
+        final double window = besselI0(KAISER_BETA);
+        for (int j = 0; j < prototypeLength; j++) {
+            final double x = j - center;
+            final double r = x / (center + 1);
+            final double h = 2 * cutoff * sinc(2 * cutoff * x)
+                    * besselI0(KAISER_BETA * Math.sqrt(1 - r * r)) / window;
+            // The zeros inserted by the interpolation cost 1 / mUp of the gain.
+            final int phase = j % mUp;
+            final int tap = j / mUp;
+            mCoefficients[phase * mTaps + (mTaps - 1 - tap)] = (float) (h * mUp);
+        }
+        mBuffer = new float[mTaps - 1];
+        reset();
+    }
+
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * Forgets the audio of the previous chunks, such as at the start of a new utterance.
+     */
+    public void reset() {
+        if (mTaps == 0) {
+            return;
+        }
+        for (int i = 0; i < mTaps - 1; i++) {
+            mBuffer[i] = 0;
+        }
+        mPosition = mTaps - 1;
+        mPhase = 0;
+    }
+
+    /**
+     * Calculates the largest output of {@link #resample(byte[], int, byte[], int)}.
+     *
+     * @param size The size of the input in bytes.
+     * @return The required size of the output buffer in bytes.
+     */
+    public int getMaxOutputSize(int size) {
+        if (mTaps == 0) {
+            return size;
+        }
+        return (int) ((long) (size / 2) * mUp / mDown + 2) * 2;
+    }
+
+    /**
+     * Resamples the next chunk of audio into an {@link AudioFrame} from a pool owned by this
+     * resampler. When the rates are the same, {@code frame} itself is returned with an added
+     * reference.
+     *
+     * @param frame The audio data in LINEAR16.
+     * @return A frame with the resampled audio. The caller is responsible for releasing it.
+     */
+    public AudioFrame resample(AudioFrame frame) {
+        if (mTaps == 0) {
+            return frame.retain();
+        }
+        final int capacity = getMaxOutputSize(frame.getCapacity());
+        if (mPool == null || mPool.getFrameCapacity() < capacity) {
+            mPool = new AudioFramePool(capacity);
+        }
+        final AudioFrame resampled = mPool.acquire();
+        resampled.setSize(resample(frame.getData(), frame.getSize(), resampled.getData(), 0));
+        resampled.setUtteranceId(frame.getUtteranceId());
+        resampled.setSilent(frame.isSilent());
+        return resampled;
+    }
+
+    /**
+     * Resamples the next chunk of audio.
+     *
+     * @param pcm    The audio data in LINEAR16, little endian, mono.
+     * @param size   The size of the actual data in {@code pcm}.
+     * @param out    The buffer to write the output to. It must have at least
+     *               {@link #getMaxOutputSize(int)} bytes after {@code offset}.
+     * @param offset The position in {@code out} to start writing at.
+     * @return The number of bytes written.
+     */
+    public int resample(byte[] pcm, int size, byte[] out, int offset) {
+        final int samples = size / 2;
+        if (mTaps == 0) {
+            System.arraycopy(pcm, 0, out, offset, samples * 2);
+            return samples * 2;
+        }
+        final int history = mTaps - 1;
+        final int end = history + samples;
+        if (mBuffer.length < end) {
+            final float[] buffer = new float[end];
+            System.arraycopy(mBuffer, 0, buffer, 0, history);
+            mBuffer = buffer;
+        }
+        final float[] buffer = mBuffer;
+        for (int i = 0; i < samples; i++) {
+            buffer[history + i] = (short) ((pcm[i * 2] & 0xff) | (pcm[i * 2 + 1] << 8));
+        }
+        final float[] coefficients = mCoefficients;
+        final int taps = mTaps;
+        int position = mPosition;
+        int phase = mPhase;
+        int o = offset;
+        while (position < end) {
+            final int c = phase * taps;
+            final int x = position - history;
+            float sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += coefficients[c + k] * buffer[x + k];
+            }
+            final int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    Math.round(sum)));
+            out[o++] = (byte) sample;
+            out[o++] = (byte) (sample >> 8);
+            phase += mDown;
+            position += phase / mUp;
+            phase %= mUp;
+        }
+        // Keep the newest samples as the history of the next chunk.
+        System.arraycopy(buffer, samples, buffer, 0, history);
+        mPosition = position - samples;
+        mPhase = phase;
+        return o - offset;
+    }
+
+    private static double sinc(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        final double a = Math.PI * x;
+        return Math.sin(a) / a;
+    }
+
+    /**
+     * The modified Bessel function of the first kind, order 0, for the Kaiser window.
+     */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * Delivers recognition results to {@link SpeechService.Listener}s on an {@link Executor}, so that
+ * slow listeners never hold up the gRPC threads.
+ *
+ * <p>Final results are all delivered, in order. An interim result is only a hypothesis that the
+ * next one revises, so while a change to it is waiting to be delivered, a newer change is merged
+ * into it, and a final result discards it.</p>
+ *
+ * <p>The results waiting to be delivered are taken all at once, under a short lock, so an interim
+ * result that arrives after a final one is never delivered before it.</p>
+ */
+class ResultDispatcher {
+
+    private final Executor mExecutor;
+
+    private final CopyOnWriteArrayList<SpeechService.Listener> mListeners =
+            new CopyOnWriteArrayList<>();
+
+    private final Object mLock = new Object();
+
+    // The fields below are guarded by mLock.
+
+    private ArrayDeque<String> mFinals = new ArrayDeque<>();
+
+    /**
+     * The changes to the interim result that have not been delivered yet, merged into one. It is
+     * always newer than {@link #mFinals}.
+     */
+    private TranscriptDelta mInterim;
+
+    /** Whether {@link #mDrain} is already waiting to run on {@link #mExecutor}. */
+    private boolean mScheduled;
+
+    /** The final results being delivered; only used by {@link #mDrain}. */
+    private ArrayDeque<String> mDelivering = new ArrayDeque<>();
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            final TranscriptDelta delta;
+            synchronized (mLock) {
+                mScheduled = false;
+                final ArrayDeque<String> finals = mFinals;
+                mFinals = mDelivering;
+                mDelivering = finals;
+                delta = mInterim;
+                mInterim = null;
+            }
+            String text;
+            while ((text = mDelivering.poll()) != null) {
+                for (SpeechService.Listener listener : mListeners) {
+                    listener.onSpeechRecognized(text);
+                }
+            }
+            if (delta != null) {
+                for (SpeechService.Listener listener : mListeners) {
+                    listener.onSpeechUpdated(delta);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param executor Runs the listeners. This should run tasks one at a time, in order.
+     */
+    ResultDispatcher(Executor executor) {
+        mExecutor = executor;
+    }
+
+    void addListener(SpeechService.Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    void removeListener(SpeechService.Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Queues a final result for the listeners. This can be called on any thread.
+     *
+     * @param text The text.
+     */
+    void dispatchFinal(String text) {
+        final boolean schedule;
+        synchronized (mLock) {
+            // The final result supersedes the hypotheses before it.
+            mInterim = null;
+            mFinals.add(text);
+            schedule = markScheduled();
+        }
+        if (schedule) {
+            schedule();
+        }
+    }
+
+    /**
+     * Queues a change to the interim result for the listeners. This can be called on any thread.
+     *
+     * @param delta The change.
+     */
+    void dispatchInterim(TranscriptDelta delta) {
+        final boolean schedule;
+        synchronized (mLock) {
+            mInterim = mInterim == null ? delta : mInterim.then(delta);
+            schedule = markScheduled();
+        }
+        if (schedule) {
+            schedule();
+        }
+    }
+
+    /**
+     * @return {@code true} if {@link #mDrain} was not scheduled yet, and the caller should do it.
+     */
+    private boolean markScheduled() {
+        if (mScheduled) {
+            return false;
+        }
+        mScheduled = true;
+        return true;
+    }
+
+    private void schedule() {
+        try {
+            mExecutor.execute(mDrain);
+        } catch (RejectedExecutionException e) {
+            // The service is shutting down.
+            synchronized (mLock) {
+                mScheduled = false;
+            }
+        }
+    }
+
+}
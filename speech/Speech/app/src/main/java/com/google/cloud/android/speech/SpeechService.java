@@ -24,6 +24,7 @@ import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -32,36 +33,47 @@ import android.util.Log;
 import com.google.auth.Credentials;
 import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.speech.v1.RecognitionAudio;
 import com.google.cloud.speech.v1.RecognitionConfig;
-import com.google.cloud.speech.v1.RecognizeRequest;
-import com.google.cloud.speech.v1.RecognizeResponse;
 import com.google.cloud.speech.v1.SpeechGrpc;
 import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
-import com.google.cloud.speech.v1.SpeechRecognitionResult;
 import com.google.cloud.speech.v1.StreamingRecognitionConfig;
 import com.google.cloud.speech.v1.StreamingRecognitionResult;
-import com.google.cloud.speech.v1.StreamingRecognizeRequest;
 import com.google.cloud.speech.v1.StreamingRecognizeResponse;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.Duration;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.grpc.CallOptions;
 import io.grpc.Channel;
 import io.grpc.ClientCall;
 import io.grpc.ClientInterceptor;
 import io.grpc.ClientInterceptors;
+import io.grpc.ForwardingClientCallListener;
 import io.grpc.ManagedChannel;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
@@ -69,7 +81,9 @@ import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.internal.DnsNameResolverProvider;
 import io.grpc.okhttp.OkHttpChannelProvider;
-import io.grpc.stub.StreamObserver;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
 
 
 public class SpeechService extends Service {
@@ -77,241 +91,1680 @@ public class SpeechService extends Service {
     public interface Listener {
 
         /**
-         * Called when a new piece of text was recognized by the Speech API.
+         * Called when the Speech API finished recognizing a piece of speech.
          *
-         * @param text    The text.
-         * @param isFinal {@code true} when the API finished processing audio.
+         * @param text The text.
          */
-        void onSpeechRecognized(String text, boolean isFinal);
+        void onSpeechRecognized(String text);
+
+        /**
+         * Called when the Speech API revised its guess of the speech it is still hearing. The
+         * guess is empty when the speech begins, and after each call to
+         * {@link #onSpeechRecognized(String)}.
+         *
+         * @param delta The change to the guess.
+         */
+        void onSpeechUpdated(TranscriptDelta delta);
+
+    }
+
+    /**
+     * What a stream does with new audio when the network cannot keep up, and the audio waiting to
+     * be sent reaches {@value #OUTBOUND_QUEUE_MAX_MILLIS} milliseconds.
+     *
+     * <p>In continuous mode, the results of consecutive streams are joined by where their words
+     * are on the timeline of the whole recognition. Each stream records where it dropped audio,
+     * so that the words after it are still placed correctly.</p>
+     */
+    public enum BackpressurePolicy {
+
+        /** Drops the oldest silence waiting to be sent, or the oldest audio if there is none. */
+        DROP_OLDEST_SILENCE,
+
+        /**
+         * Switches the following streams of the session to FLAC, which is about half the size,
+         * and drops audio like {@link #DROP_OLDEST_SILENCE} in the meantime. The encoding of a
+         * stream cannot change once it has started.
+         */
+        DOWNGRADE_ENCODING,
+
+        /**
+         * Makes {@link Session#recognize(AudioFrame)} wait for room, so that the
+         * {@link VoiceRecorder} queues the audio, or drops it according to its own policy. Audio
+         * is dropped like {@link #DROP_OLDEST_SILENCE} if there is still no room after
+         * {@value #OUTBOUND_BLOCK_TIMEOUT_MILLIS} milliseconds.
+         */
+        BLOCK,
+
+    }
+
+    /**
+     * Audio to be recognized by {@link #recognizeBatch(List, int, String, int, BatchListener)}.
+     */
+    public interface AudioSource {
+
+        /**
+         * Opens the audio. This is called on a background thread, and may be called more than
+         * once if the recognition is retried.
+         *
+         * @return A new channel to read the LINEAR16 mono audio from.
+         */
+        ReadableByteChannel open() throws IOException;
+
+        /**
+         * @return The length of the audio in bytes, or -1 if unknown.
+         */
+        long getLength();
+
+    }
+
+    /**
+     * Receives the progress and the results of a batch. The methods are called on background
+     * threads.
+     */
+    public interface BatchListener {
+
+        /**
+         * Called as the audio of an item is sent.
+         *
+         * @param index       The index of the item in the batch.
+         * @param sentBytes   The amount of audio sent in the current attempt.
+         * @param totalBytes  The value of {@link AudioSource#getLength()}.
+         */
+        void onItemProgress(int index, long sentBytes, long totalBytes);
+
+        /**
+         * Called when an item is recognized.
+         *
+         * @param index         The index of the item in the batch.
+         * @param transcript    The final results joined together.
+         * @param elapsedMillis The time from the start of the first attempt.
+         */
+        void onItemCompleted(int index, String transcript, long elapsedMillis);
+
+        /**
+         * Called when an item cannot be recognized, after all the retries.
+         *
+         * @param index         The index of the item in the batch.
+         * @param error         The last error.
+         * @param elapsedMillis The time from the start of the first attempt.
+         */
+        void onItemFailed(int index, Throwable error, long elapsedMillis);
+
+        /**
+         * Called when all the items have either completed or failed.
+         */
+        void onBatchCompleted();
+
+    }
+
+    private static final String TAG = "SpeechService";
+
+    private static final String PREFS = "SpeechService";
+    private static final String PREF_ACCESS_TOKEN_VALUE = "access_token_value";
+    private static final String PREF_ACCESS_TOKEN_EXPIRATION_TIME = "access_token_expiration_time";
+
+    /** We reuse an access token if its expiration time is longer than this. */
+    private static final int ACCESS_TOKEN_EXPIRATION_TOLERANCE = 30 * 60 * 1000; // thirty minutes
+    /** We refresh the current access token before it expires. */
+    private static final int ACCESS_TOKEN_FETCH_MARGIN = 60 * 1000; // one minute
+
+    public static final List<String> SCOPE =
+            Collections.singletonList("https://www.googleapis.com/auth/cloud-platform");
+    private static final String HOSTNAME = "speech.googleapis.com";
+    private static final int PORT = 443;
+
+    /** The connection set up at start is abandoned if it takes longer than this. */
+    private static final long WARMUP_TIMEOUT_SECONDS = 30;
+
+    /** Pings the server on an idle connection so that the channel stays warm. */
+    private static final long KEEPALIVE_TIME_MINUTES = 5;
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 20;
+
+    /** In continuous mode, streams are replaced before the API closes them at about 5 minutes. */
+    private static final int STREAM_LIMIT_MILLIS = 290 * 1000;
+    /** How much audio is sent to both the old and the new stream when a stream is replaced. */
+    private static final int STREAM_OVERLAP_MILLIS = 2000;
+
+    /** At most this much audio is held while the API is not ready. */
+    private static final int PENDING_AUDIO_MAX_MILLIS = 10 * 1000;
+    /** Audio held while the API is not ready is discarded if it is not ready by then. */
+    private static final int PENDING_AUDIO_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * The most audio a stream holds while gRPC is not ready to send it. A new stream is not
+     * ready yet, so this fits all of the audio held while the API was not ready.
+     */
+    private static final int OUTBOUND_QUEUE_MAX_MILLIS = PENDING_AUDIO_MAX_MILLIS;
+    /** How long {@link BackpressurePolicy#BLOCK} waits for room in the outbound queue. */
+    private static final long OUTBOUND_BLOCK_TIMEOUT_MILLIS = 500;
+
+    /** The preferred length of audio sent in each request when recognizing speech. */
+    private static final int DEFAULT_CHUNK_MILLIS = 100;
+
+    /** The length of audio sent in each request when recognizing a file. */
+    private static final int FILE_CHUNK_MILLIS = 100;
+    /** The number of chunks of a file read ahead of the stream. */
+    private static final int FILE_READ_AHEAD_CHUNKS = 4;
+
+    /** Items of a batch are tried this many times when they fail with a transient error. */
+    private static final int BATCH_MAX_ATTEMPTS = 5;
+    private static final long BATCH_INITIAL_BACKOFF_MILLIS = 500;
+    private static final long BATCH_MAX_BACKOFF_MILLIS = 16 * 1000;
+
+    private final SpeechBinder mBinder = new SpeechBinder();
+    /** Runs the listeners off the gRPC threads. */
+    private final ExecutorService mDispatchExecutor = Executors.newSingleThreadExecutor();
+    private final ResultDispatcher mDispatcher = new ResultDispatcher(mDispatchExecutor);
+    /** Reads the audio of file recognitions, so that the gRPC threads never block on I/O. */
+    private final ExecutorService mFileExecutor = Executors.newCachedThreadPool();
+    /** Opens the items of batches, and runs their retries after the backoff. */
+    private final ScheduledExecutorService mBatchExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final SpeechStats mStats = new SpeechStats();
+    /** Used by the methods of this service that take audio. */
+    private final Session mDefaultSession = new Session(null, mDispatcher, mStats);
+    /** The sessions opened with {@link #openSession(String)}. */
+    private final CopyOnWriteArrayList<Session> mSessions = new CopyOnWriteArrayList<>();
+    private long mStatsDumpIntervalMillis;
+    private volatile AccessTokenTask mAccessTokenTask;
+    /** Set once both the channel and an access token are available. */
+    private volatile SpeechGrpc.SpeechStub mApi;
+    /** Created in {@link #onCreate()}, and connected while the access token is fetched. */
+    private ManagedChannel mChannel;
+    /** Supplies the current access token to {@link #mChannel}; rotated on every refresh. */
+    private GoogleCredentialsInterceptor mCredentialsInterceptor;
+    /** When this service was created, for {@link SpeechStats#getStartupReadyMillis()}. */
+    private long mCreatedMillis;
+    private boolean mConnected;
+    private static Handler mHandler;
+
+    public static SpeechService from(IBinder binder) {
+        return ((SpeechBinder) binder).getService();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mCreatedMillis = SystemClock.elapsedRealtime();
+        mHandler = new Handler();
+        // The token and the connection are independent, so they are set up in parallel.
+        fetchAccessToken();
+        mCredentialsInterceptor = new GoogleCredentialsInterceptor(null);
+        mChannel = new OkHttpChannelProvider()
+                .builderForAddress(HOSTNAME, PORT)
+                .nameResolverFactory(new DnsNameResolverProvider())
+                .keepAliveTime(KEEPALIVE_TIME_MINUTES, TimeUnit.MINUTES)
+                .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .keepAliveWithoutCalls(true)
+                .intercept(mCredentialsInterceptor)
+                .build();
+        warmUp();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mFetchAccessTokenRunnable);
+        mHandler.removeCallbacks(mDumpStatsRunnable);
+        mHandler = null;
+        // The default session is not in mSessions, but it may still hold a stream and audio.
+        mDefaultSession.close();
+        for (Session session : mSessions) {
+            session.close();
+        }
+        mDispatchExecutor.shutdown();
+        mFileExecutor.shutdown();
+        mBatchExecutor.shutdownNow();
+        // Release the gRPC channel.
+        mApi = null;
+        if (mChannel != null) {
+            if (!mChannel.isShutdown()) {
+                try {
+                    mChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Error shutting down the gRPC channel.", e);
+                }
+            }
+            mChannel = null;
+            mCredentialsInterceptor = null;
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer);
+        for (Session session : mSessions) {
+            writer.println();
+            writer.println("session " + session.getLanguageCode() + ":");
+            session.getStats().dump(writer);
+        }
+    }
+
+    /**
+     * @return The latency and throughput statistics of this service.
+     */
+    public SpeechStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Writes the statistics to the log periodically. The statistics are also available through
+     * {@code adb shell dumpsys activity service SpeechService}.
+     *
+     * @param millis The interval in milliseconds, or 0 to stop.
+     */
+    public void setStatsDumpIntervalMillis(long millis) {
+        mStatsDumpIntervalMillis = millis;
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mDumpStatsRunnable);
+            if (millis > 0) {
+                mHandler.postDelayed(mDumpStatsRunnable, millis);
+            }
+        }
+    }
+
+    private final Runnable mDumpStatsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final StringWriter writer = new StringWriter();
+            mStats.dump(new PrintWriter(writer));
+            Log.i(TAG, "Stats:\n" + writer);
+            if (mHandler != null && mStatsDumpIntervalMillis > 0) {
+                mHandler.postDelayed(this, mStatsDumpIntervalMillis);
+            }
+        }
+    };
+
+    /**
+     * Connects {@link #mChannel} before there is anything to send: the DNS lookup, the TLS
+     * handshake and the HTTP/2 setup. A call that carries no request is started, and cancelled
+     * as soon as the connection can take it.
+     */
+    private void warmUp() {
+        final ClientCall<AudioRequest, StreamingRecognizeResponse> call = mChannel.newCall(
+                AudioRequest.STREAMING_RECOGNIZE,
+                CallOptions.DEFAULT.withDeadlineAfter(WARMUP_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        call.start(new ClientCall.Listener<StreamingRecognizeResponse>() {
+
+            private boolean mReady;
+
+            @Override
+            public void onReady() {
+                if (mReady) {
+                    return;
+                }
+                mReady = true;
+                call.cancel("Connected.", null);
+                final Handler handler = mHandler;
+                if (handler != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onConnected();
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                if (!mReady) {
+                    Log.w(TAG, "Failed to connect in advance: " + status);
+                }
+            }
+
+        }, new Metadata());
+    }
+
+    private void onConnected() {
+        if (mConnected || mChannel == null) {
+            return;
+        }
+        mConnected = true;
+        final long elapsed = SystemClock.elapsedRealtime() - mCreatedMillis;
+        mStats.getStartupConnectedMillis().record(elapsed);
+        Log.i(TAG, "Connected " + elapsed + " ms after start.");
+        if (mApi != null) {
+            mStats.getStartupReadyMillis().record(elapsed);
+        }
+    }
+
+    private void fetchAccessToken() {
+        if (mAccessTokenTask != null) {
+            return;
+        }
+        mAccessTokenTask = new AccessTokenTask();
+        mAccessTokenTask.execute();
+    }
+
+    /**
+     * Retrieves how long the first call after the latest access token refresh took to receive
+     * the response headers. This includes the connection setup if the channel was not connected.
+     *
+     * @return The latency in milliseconds, or -1 if it has not been measured yet.
+     */
+    public long getFirstCallLatencyMillis() {
+        final GoogleCredentialsInterceptor interceptor = mCredentialsInterceptor;
+        return interceptor == null ? -1 : interceptor.getFirstCallLatencyMillis();
+    }
+
+    private String getDefaultLanguageCode() {
+        final Locale locale = Locale.getDefault();
+        final StringBuilder language = new StringBuilder(locale.getLanguage());
+        final String country = locale.getCountry();
+        if (!TextUtils.isEmpty(country)) {
+            language.append("-");
+            language.append(country);
+        }
+        return language.toString();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        mDispatcher.addListener(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        mDispatcher.removeListener(listener);
+    }
+
+    /**
+     * Opens a new recognition session that runs alongside the others.
+     *
+     * @param languageCode The language of the speech, such as "en-US", or {@code null} for the
+     *                     default locale.
+     * @return The new session. Call {@link Session#close()} when it is no longer used.
+     */
+    @NonNull
+    public Session openSession(@Nullable String languageCode) {
+        final Session session = new Session(languageCode, new ResultDispatcher(mDispatchExecutor),
+                new SpeechStats(mStats));
+        mSessions.add(session);
+        return session;
+    }
+
+    /**
+     * @return The sessions that are open, not including the one used by the methods of this
+     * service.
+     */
+    public List<Session> getSessions() {
+        return Collections.unmodifiableList(new ArrayList<>(mSessions));
+    }
+
+    /**
+     * @see Session#setAudioEncoding(RecognitionConfig.AudioEncoding)
+     */
+    public void setAudioEncoding(RecognitionConfig.AudioEncoding encoding) {
+        mDefaultSession.setAudioEncoding(encoding);
+    }
+
+    /**
+     * @see Session#setContinuous(boolean)
+     */
+    public void setContinuous(boolean continuous) {
+        mDefaultSession.setContinuous(continuous);
+    }
+
+    /**
+     * @see Session#isContinuous()
+     */
+    public boolean isContinuous() {
+        return mDefaultSession.isContinuous();
+    }
+
+    /**
+     * @see Session#setBackpressurePolicy(BackpressurePolicy)
+     */
+    public void setBackpressurePolicy(@NonNull BackpressurePolicy policy) {
+        mDefaultSession.setBackpressurePolicy(policy);
+    }
+
+    /**
+     * @see Session#setChunkMillis(int)
+     */
+    public void setChunkMillis(int millis) {
+        mDefaultSession.setChunkMillis(millis);
+    }
+
+    /**
+     * Starts recognizing speech audio.
+     *
+     * @param sampleRate The sample rate of the audio.
+     * @see Session#startRecognizing(int)
+     */
+    public void startRecognizing(int sampleRate) {
+        mDefaultSession.startRecognizing(sampleRate);
+    }
+
+    /**
+     * Recognizes the speech audio.
+     *
+     * @param frame The audio data.
+     * @see Session#recognize(AudioFrame)
+     */
+    public void recognize(AudioFrame frame) {
+        mDefaultSession.recognize(frame);
+    }
+
+    /**
+     * Finishes recognizing speech audio.
+     */
+    public void finishRecognizing() {
+        mDefaultSession.finishRecognizing();
+    }
+
+    private void deliverResult(String text) {
+        mDispatcher.dispatchFinal(text);
+    }
+
+    /**
+     * Recognize all data from the specified {@link InputStream}.
+     *
+     * @param stream The audio data in LINEAR16 at 16 kHz, spoken in English.
+     * @see #recognizeChannel(ReadableByteChannel, int, String)
+     */
+    public void recognizeInputStream(InputStream stream) {
+        recognizeChannel(Channels.newChannel(stream), 16000, "en-US");
+    }
+
+    /**
+     * Recognizes audio of any length, such as a file opened with
+     * {@link java.io.FileInputStream#getChannel()}.
+     *
+     * <p>The audio is read in small chunks, and only when the connection is ready to send them,
+     * so the memory use does not depend on the length of the audio. Audio longer than the stream
+     * duration limit of the API is recognized in several consecutive streams. Final results are
+     * delivered to the listeners as they arrive.</p>
+     *
+     * @param channel      The LINEAR16 mono audio. This is closed when the recognition is done.
+     * @param sampleRate   The sample rate of the audio.
+     * @param languageCode The language of the speech, such as "en-US".
+     */
+    public void recognizeChannel(ReadableByteChannel channel, int sampleRate,
+            String languageCode) {
+        if (mApi == null) {
+            Log.w(TAG, "API not ready. Ignoring the request.");
+            closeQuietly(channel);
+            return;
+        }
+        new FileRecognition(channel, sampleRate, languageCode).start();
+    }
+
+    /**
+     * Recognizes a number of audio sources, several at a time, over the shared channel. Items
+     * that fail with a transient error are retried with exponential backoff.
+     *
+     * @param sources        The audio.
+     * @param sampleRate     The sample rate of all the audio.
+     * @param languageCode   The language of the speech, such as "en-US".
+     * @param maxConcurrency The maximum number of items recognized at the same time.
+     * @param listener       Receives the progress and the results.
+     */
+    public void recognizeBatch(List<? extends AudioSource> sources, int sampleRate,
+            String languageCode, int maxConcurrency, BatchListener listener) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency: " + maxConcurrency);
+        }
+        new BatchRecognition(new ArrayList<>(sources), sampleRate, languageCode, listener)
+                .start(maxConcurrency);
+    }
+
+    private static boolean isTransient(Throwable error) {
+        switch (Status.fromThrowable(error).getCode()) {
+            case UNAVAILABLE:
+            case DEADLINE_EXCEEDED:
+            case RESOURCE_EXHAUSTED:
+            case ABORTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void closeQuietly(ReadableByteChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing the input.", e);
+        }
+    }
+
+    /**
+     * An independent recognition, such as for one of several microphones, or for one of several
+     * languages. Each session has its own stream, configuration, listeners and statistics, and all
+     * the sessions share the channel of the service. Open one with {@link #openSession(String)}.
+     *
+     * <p>The methods that take audio must be called on one thread at a time, but different
+     * sessions can be used on different threads.</p>
+     */
+    public class Session {
+
+        /** The language of the speech, or {@code null} for the default locale. */
+        private final String mLanguageCode;
+
+        private final ResultDispatcher mDispatcher;
+
+        private final SpeechStats mStats;
+
+        private boolean mClosed;
+
+        /** The stream that currently receives audio. */
+        private RecognitionStream mStream;
+
+        /** The stream of the last utterance replayed by {@link #flushPendingAudio()}, or null. */
+        private RecognitionStream mLastReplayedStream;
+
+        private RecognitionConfig.AudioEncoding mAudioEncoding =
+                RecognitionConfig.AudioEncoding.LINEAR16;
+
+        private boolean mContinuous;
+
+        private BackpressurePolicy mBackpressurePolicy = BackpressurePolicy.DROP_OLDEST_SILENCE;
+
+        private int mSampleRate;
+
+        /** The amount of audio passed to {@link #recognize(AudioFrame)} since recognition began. */
+        private long mTimelineBytes;
+
+        /** When {@link #startRecognizing(int)} was last called; the latencies count from here. */
+        private long mStartedMillis;
+
+        /** The most recent audio; replayed into the next stream in continuous mode. */
+        private AudioHistory mOverlap;
+
+        /** Provides frames to replay {@link #mOverlap}. */
+        private AudioFramePool mReplayPool;
+
+        private int mChunkMillis = DEFAULT_CHUNK_MILLIS;
+
+        /** Joins the audio into requests of about {@link #mChunkMillis}, or {@code null}. */
+        private FrameAggregator mAggregator;
+
+        /**
+         * Utterances heard while the API was not ready, oldest first. Only the last one can be
+         * unfinished, and only if it is the current recognition.
+         */
+        private final ArrayDeque<PendingUtterance> mPendingUtterances = new ArrayDeque<>();
+
+        /** The amount of audio in {@link #mPendingUtterances}. */
+        private int mPendingBytes;
+
+        private final FrameAggregator.Sink mSink = new FrameAggregator.Sink() {
+            @Override
+            public void onChunk(AudioFrame chunk) {
+                mStream.send(chunk);
+            }
+        };
+
+        /** Guards the delivery of results, which arrive on gRPC threads. */
+        private final Object mResultLock = new Object();
+
+        /** The interim transcript as the listeners know it. Guarded by {@link #mResultLock}. */
+        private final TranscriptAssembler mAssembler = new TranscriptAssembler();
+
+        Session(String languageCode, ResultDispatcher dispatcher, SpeechStats stats) {
+            mLanguageCode = languageCode;
+            mDispatcher = dispatcher;
+            mStats = stats;
+        }
+
+        public void addListener(@NonNull Listener listener) {
+            mDispatcher.addListener(listener);
+        }
+
+        public void removeListener(@NonNull Listener listener) {
+            mDispatcher.removeListener(listener);
+        }
+
+        /**
+         * @return The language of the speech.
+         */
+        public String getLanguageCode() {
+            return mLanguageCode != null ? mLanguageCode : getDefaultLanguageCode();
+        }
+
+        /**
+         * @return The statistics of this session. These are also included in
+         * {@link SpeechService#getStats()}.
+         */
+        public SpeechStats getStats() {
+            return mStats;
+        }
+
+        /**
+         * Sets how the audio is encoded for upload. This takes effect from the next call to
+         * {@link #startRecognizing(int)}.
+         *
+         * <p>{@link RecognitionConfig.AudioEncoding#FLAC} roughly halves the upload size of speech
+         * at the cost of some CPU time on the device.</p>
+         *
+         * @param encoding Either {@link RecognitionConfig.AudioEncoding#LINEAR16} or
+         *                 {@link RecognitionConfig.AudioEncoding#FLAC}.
+         */
+        public void setAudioEncoding(RecognitionConfig.AudioEncoding encoding) {
+            if (encoding != RecognitionConfig.AudioEncoding.LINEAR16
+                    && encoding != RecognitionConfig.AudioEncoding.FLAC) {
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+            }
+            mAudioEncoding = encoding;
+        }
+
+        /**
+         * Sets whether recognition continues through pauses and past the stream duration limit of
+         * the API. This takes effect from the next call to {@link #startRecognizing(int)}.
+         *
+         * <p>In continuous mode, the API does not stop at the end of the first utterance, and
+         * every stream is transparently replaced by a new one shortly before the API would close
+         * it. The last {@value #STREAM_OVERLAP_MILLIS} milliseconds of audio are sent to both
+         * streams, and the results are stitched together at the word level so that listeners see
+         * one continuous transcript. Use this together with
+         * {@link VoiceRecorder#setMaxSpeechLengthMillis(int)} for long dictation.</p>
+         *
+         * @param continuous {@code true} to recognize continuously.
+         */
+        public void setContinuous(boolean continuous) {
+            mContinuous = continuous;
+        }
+
+        /**
+         * @return {@code true} if recognition continues through pauses.
+         * @see #setContinuous(boolean)
+         */
+        public boolean isContinuous() {
+            return mContinuous;
+        }
+
+        /**
+         * Sets what happens to new audio when the network cannot keep up. This takes effect from
+         * the next call to {@link #startRecognizing(int)}.
+         *
+         * <p>Each stream holds up to {@value #OUTBOUND_QUEUE_MAX_MILLIS} milliseconds of audio
+         * while gRPC is not ready to send more, in continuous mode too. Beyond that, whatever the
+         * policy, audio is dropped, so memory stays bounded however slow the network is. The
+         * amount held is {@link SpeechStats#getOutboundQueuedBytes()}.</p>
+         *
+         * @param policy The policy.
+         */
+        public void setBackpressurePolicy(@NonNull BackpressurePolicy policy) {
+            mBackpressurePolicy = policy;
+        }
+
+        /**
+         * Sets how much audio is sent in each request. This takes effect from the next call to
+         * {@link #startRecognizing(int)}.
+         *
+         * <p>Audio passed to {@link #recognize(AudioFrame)} in smaller frames is joined into
+         * requests of about this length. The length grows when the connection cannot keep up
+         * with the requests, and shrinks back when it recovers; see
+         * {@link SpeechStats#getChunkMillis()}.</p>
+         *
+         * @param millis The preferred length in milliseconds, or 0 to send every frame as it is.
+         */
+        public void setChunkMillis(int millis) {
+            if (millis < 0 || millis > FrameAggregator.MAX_CHUNK_MILLIS) {
+                throw new IllegalArgumentException("Invalid length: " + millis);
+            }
+            mChunkMillis = millis;
+        }
+
+        /**
+         * Starts recognizing speech audio.
+         *
+         * @param sampleRate The sample rate of the audio.
+         */
+        public synchronized void startRecognizing(int sampleRate) {
+            if (mClosed) {
+                throw new IllegalStateException("The session is closed.");
+            }
+            final PendingUtterance previous = mPendingUtterances.peekLast();
+            if (previous != null) {
+                // Sent in a stream of its own once the API is ready.
+                previous.mFinished = true;
+            }
+            // While the session is still set up for the utterances held so far.
+            flushPendingAudio();
+            mStartedMillis = SystemClock.elapsedRealtime();
+            mSampleRate = sampleRate;
+            mTimelineBytes = 0;
+            if (mContinuous) {
+                final int capacity = AudioHistory.capacityFor(STREAM_OVERLAP_MILLIS, sampleRate);
+                if (mOverlap == null || mOverlap.getCapacity() != capacity) {
+                    mOverlap = new AudioHistory(capacity);
+                }
+                mOverlap.clear();
+            }
+            if (mAggregator != null) {
+                mAggregator.clear();
+            }
+            mAggregator = mChunkMillis > 0
+                    ? new FrameAggregator(sampleRate, mChunkMillis, mSink) : null;
+            if (mAggregator != null && mCredentialsInterceptor != null
+                    && mCredentialsInterceptor.getFirstCallLatencyMillis() > 0) {
+                mAggregator.onRoundTrip(mCredentialsInterceptor.getFirstCallLatencyMillis());
+            }
+            if (mApi == null) {
+                Log.i(TAG, "API not ready. Holding the audio until it is.");
+                mPendingUtterances.add(new PendingUtterance(sampleRate, mStartedMillis));
+                return;
+            }
+            mStream = new RecognitionStream(0, mStartedMillis);
+            chain(mLastReplayedStream, mStream);
+            mLastReplayedStream = null;
+        }
+
+        /**
+         * Recognizes the speech audio. This method should be called every time a chunk of byte
+         * buffer is ready.
+         *
+         * <p>The audio data is sent without being copied. The {@code frame} is retained until gRPC
+         * has serialized it, so the caller can release its own reference as soon as this
+         * returns.</p>
+         *
+         * <p>While the API is not ready, such as when the service has just started, up to
+         * {@value #PENDING_AUDIO_MAX_MILLIS} milliseconds of audio are held, and sent as soon as it
+         * is ready. Audio beyond that is dropped and counted in
+         * {@link SpeechStats#getPendingOverflowFrames()}. Each utterance held this way is later
+         * sent in a stream of its own, and their results are delivered in order.</p>
+         *
+         * @param frame The audio data.
+         */
+        public synchronized void recognize(AudioFrame frame) {
+            if (mStream == null) {
+                final PendingUtterance current = mPendingUtterances.peekLast();
+                if (current == null || current.mFinished) {
+                    return;
+                }
+                if (mApi == null) {
+                    holdAudio(current, frame);
+                    return;
+                }
+                flushPendingAudio();
+                if (mStream == null) {
+                    return;
+                }
+            }
+            sendAudio(frame);
+        }
+
+        private void sendAudio(AudioFrame frame) {
+            if (mContinuous && mStream.isExpiring()) {
+                rollOver(mAggregator != null
+                        ? Math.max(mAggregator.getChunkBytes(), frame.getCapacity())
+                        : frame.getCapacity());
+            }
+            // Call the streaming recognition API
+            if (mAggregator != null) {
+                mAggregator.add(frame);
+            } else {
+                mStream.send(frame);
+            }
+            mTimelineBytes += frame.getSize();
+            if (mContinuous) {
+                mOverlap.write(frame.getData(), frame.getSize());
+            }
+        }
+
+        /**
+         * Finishes recognizing speech audio.
+         */
+        public synchronized void finishRecognizing() {
+            if (mStream == null) {
+                final PendingUtterance current = mPendingUtterances.peekLast();
+                if (current != null && !current.mFinished) {
+                    if (mApi == null) {
+                        current.mFinished = true;
+                        return;
+                    }
+                    flushPendingAudio();
+                }
+            }
+            if (mStream == null) {
+                return;
+            }
+            if (mAggregator != null) {
+                mAggregator.flush();
+            }
+            mStream.finish();
+            mStream = null;
+        }
+
+        /**
+         * Holds on to audio until the API is ready.
+         */
+        private void holdAudio(PendingUtterance utterance, AudioFrame frame) {
+            if (SystemClock.elapsedRealtime() - mPendingUtterances.peekFirst().mStartedMillis
+                    > PENDING_AUDIO_TIMEOUT_MILLIS) {
+                Log.w(TAG, "API not ready in time. Discarding the audio.");
+                mStats.addPendingOverflowFrames(discardPendingAudio() + 1);
+                return;
+            }
+            if (mPendingBytes + frame.getSize()
+                    > AudioHistory.capacityFor(PENDING_AUDIO_MAX_MILLIS, mSampleRate)) {
+                // Keep the beginning of the utterance intact.
+                mStats.addPendingOverflowFrames(1);
+                return;
+            }
+            utterance.mFrames.add(frame.retain());
+            mPendingBytes += frame.getSize();
+        }
+
+        /**
+         * Opens a stream for each utterance held while the API was not ready, and sends the
+         * audio. This is called when the API becomes ready.
+         */
+        synchronized void flushPendingAudio() {
+            final PendingUtterance first = mPendingUtterances.peekFirst();
+            if (first == null || mStream != null || mApi == null) {
+                return;
+            }
+            final long waited = SystemClock.elapsedRealtime() - first.mStartedMillis;
+            if (waited > PENDING_AUDIO_TIMEOUT_MILLIS) {
+                Log.w(TAG, "API not ready in time. Discarding the audio.");
+                mStats.addPendingOverflowFrames(discardPendingAudio());
+                return;
+            }
+            Log.i(TAG, "API ready after " + waited + " ms. Sending "
+                    + mPendingUtterances.size() + " held utterance(s).");
+            mPendingBytes = 0;
+            PendingUtterance utterance;
+            while ((utterance = mPendingUtterances.poll()) != null) {
+                if (mPendingUtterances.isEmpty()) {
+                    // The latest recognition; the session is still set up for it.
+                    final RecognitionStream stream = new RecognitionStream(0,
+                            utterance.mStartedMillis);
+                    chain(mLastReplayedStream, stream);
+                    mLastReplayedStream = null;
+                    mStream = stream;
+                    AudioFrame frame;
+                    while ((frame = utterance.mFrames.poll()) != null) {
+                        sendAudio(frame);
+                        frame.release();
+                    }
+                    if (utterance.mFinished) {
+                        final RecognitionStream last = mStream;
+                        finishRecognizing();
+                        // The next recognition waits for its results.
+                        mLastReplayedStream = last;
+                    }
+                } else {
+                    replay(utterance);
+                }
+            }
+        }
+
+        /**
+         * Sends a finished utterance in a stream of its own. Its results are delivered before
+         * those of the streams opened after it.
+         */
+        private void replay(PendingUtterance utterance) {
+            // The stream takes its configuration from the session.
+            final int sampleRate = mSampleRate;
+            mSampleRate = utterance.mSampleRate;
+            final RecognitionStream stream =
+                    new RecognitionStream(0, utterance.mStartedMillis);
+            mSampleRate = sampleRate;
+            chain(mLastReplayedStream, stream);
+            AudioFrame frame;
+            while ((frame = utterance.mFrames.poll()) != null) {
+                stream.send(frame);
+                frame.release();
+            }
+            stream.finish();
+            mLastReplayedStream = stream;
+        }
+
+        /**
+         * Releases the audio held while the API was not ready.
+         *
+         * @return The number of frames released.
+         */
+        private int discardPendingAudio() {
+            int count = 0;
+            PendingUtterance utterance;
+            while ((utterance = mPendingUtterances.poll()) != null) {
+                AudioFrame frame;
+                while ((frame = utterance.mFrames.poll()) != null) {
+                    frame.release();
+                    count++;
+                }
+            }
+            mPendingBytes = 0;
+            return count;
+        }
+
+        /**
+         * Makes {@code next} hold back its final results until {@code previous} has delivered
+         * all of its own.
+         */
+        private void chain(RecognitionStream previous, RecognitionStream next) {
+            if (previous == null) {
+                return;
+            }
+            synchronized (mResultLock) {
+                if (!previous.isDelivered()) {
+                    next.mPrevious = previous;
+                    previous.mNext = next;
+                }
+            }
+        }
+
+        /**
+         * Replaces the current stream with a new one, replaying the recent audio into it. The old
+         * stream is half-closed so that it can deliver the results for the audio it already has.
+         *
+         * @param frameCapacity The size of frames to replay the audio in.
+         */
+        private void rollOver(int frameCapacity) {
+            final RecognitionStream previous = mStream;
+            // The audio not sent yet is also in the overlap, so it reaches the new stream too.
+            if (mAggregator != null) {
+                mAggregator.flush();
+            }
+            previous.finish();
+            final long seamMillis = bytesToMillis(mTimelineBytes);
+            final long replayStartMillis = bytesToMillis(mTimelineBytes - mOverlap.size());
+            final RecognitionStream next = new RecognitionStream(replayStartMillis,
+                    SystemClock.elapsedRealtime());
+            synchronized (mResultLock) {
+                // Words are taken from the old stream before the middle of the overlap, and from
+                // the new stream after it, where each stream has heard enough context on both
+                // sides.
+                WordWindow.cut(previous.mWindow, next.mWindow, seamMillis,
+                        STREAM_OVERLAP_MILLIS);
+            }
+            chain(previous, next);
+            if (mReplayPool == null || mReplayPool.getFrameCapacity() != frameCapacity) {
+                mReplayPool = new AudioFramePool(frameCapacity, 4);
+            }
+            int position = 0;
+            while (position < mOverlap.size()) {
+                final AudioFrame replay = mReplayPool.acquire();
+                final int size = mOverlap.read(position, replay.getData(), replay.getCapacity());
+                replay.setSize(size);
+                next.send(replay);
+                replay.release();
+                position += size;
+            }
+            mStream = next;
+            Log.i(TAG, "Rolled over to a new stream at " + seamMillis + " ms.");
+        }
+
+        private long bytesToMillis(long bytes) {
+            return bytes * 1000 / 2 / mSampleRate;
+        }
+
+        private void deliverResult(String text) {
+            mDispatcher.dispatchFinal(text);
+        }
+
+        /**
+         * Finishes the current recognition, and releases this session.
+         */
+        public synchronized void close() {
+            finishRecognizing();
+            discardPendingAudio();
+            mClosed = true;
+            mSessions.remove(this);
+        }
+
+        /**
+         * The audio of one recognition, held while the API was not ready.
+         */
+        private class PendingUtterance {
+
+            final ArrayDeque<AudioFrame> mFrames = new ArrayDeque<>();
+
+            final int mSampleRate;
+
+            final long mStartedMillis;
+
+            /** Whether {@link #finishRecognizing()} was called for it. */
+            boolean mFinished;
+
+            PendingUtterance(int sampleRate, long startedMillis) {
+                mSampleRate = sampleRate;
+                mStartedMillis = startedMillis;
+            }
+
+        }
+
+        /**
+         * A single {@code streamingRecognize} call. In continuous mode, a recognition consists of a
+         * chain of these, each covering a window of the audio timeline.
+         */
+        private class RecognitionStream implements AudioStream.Listener {
+
+            private final long mOpenedMillis = SystemClock.elapsedRealtime();
+
+            /** Where the latencies of the results of this stream count from. */
+            private final long mStartedMillis;
+
+            private final BackpressurePolicy mBackpressurePolicy =
+                    Session.this.mBackpressurePolicy;
+
+            private final AudioStream mAudio;
+
+            // The fields below are guarded by mResultLock.
+
+            private boolean mInterimReceived;
+
+            private boolean mFinalReceived;
+
+            /** Final words outside of this window are heard better by the adjacent streams. */
+            final WordWindow mWindow;
+
+            /**
+             * The stream before this one, until it and the ones before it have delivered all of
+             * their results.
+             */
+            RecognitionStream mPrevious;
+            RecognitionStream mNext;
+
+            boolean mCompleted;
+
+            /** Final results held back until {@link #mPrevious} has completed. */
+            private final ArrayList<String> mPendingFinals = new ArrayList<>();
+
+            /**
+             * @param audioStartMillis Where the first audio of this stream is on the timeline.
+             * @param startedMillis    When the recognition, or the replacement of the previous
+             *                         stream, started.
+             */
+            RecognitionStream(long audioStartMillis, long startedMillis) {
+                mWindow = new WordWindow(audioStartMillis);
+                mStartedMillis = startedMillis;
+                mAudio = new AudioStream(mApi.getChannel(), mApi.getCallOptions(),
+                        AudioStream.config(getLanguageCode(), mAudioEncoding, mSampleRate,
+                                mContinuous),
+                        OUTBOUND_QUEUE_MAX_MILLIS, mAggregator, mStats, this);
+            }
+
+            /**
+             * Sends audio if gRPC is ready for it, or queues it until it is.
+             *
+             * @param frame The audio data in LINEAR16. The caller keeps its reference.
+             */
+            void send(AudioFrame frame) {
+                mAudio.send(frame);
+            }
+
+            /**
+             * Half-closes the call once the queued audio is sent.
+             */
+            void finish() {
+                mAudio.finish();
+            }
+
+            /**
+             * @return {@code true} if this stream should be replaced before the API closes it.
+             */
+            boolean isExpiring() {
+                return SystemClock.elapsedRealtime() - mOpenedMillis >= STREAM_LIMIT_MILLIS
+                        || mAudio.getSentMillis() >= STREAM_LIMIT_MILLIS;
+            }
+
+            @Override
+            public void onReady() {
+                final long now = SystemClock.elapsedRealtime();
+                mStats.getStreamOpenMillis().record(now - mStartedMillis);
+                mStats.getStreamConnectMillis().record(now - mOpenedMillis);
+            }
+
+            @Override
+            public long onOutboundFull() {
+                switch (mBackpressurePolicy) {
+                    case DOWNGRADE_ENCODING:
+                        if (mAudioEncoding != RecognitionConfig.AudioEncoding.FLAC) {
+                            Log.w(TAG, "The network is slow. Switching to FLAC.");
+                            mAudioEncoding = RecognitionConfig.AudioEncoding.FLAC;
+                        }
+                        return 0;
+                    case BLOCK:
+                        return OUTBOUND_BLOCK_TIMEOUT_MILLIS;
+                    default:
+                        return 0;
+                }
+            }
+
+            @Override
+            public void onAudioDropped(long offset, int size) {
+                // Keep the word offsets of the audio sent after it on the timeline.
+                synchronized (mResultLock) {
+                    mWindow.addGap(mAudio.bytesToMillis(offset), mAudio.bytesToMillis(size));
+                }
+            }
+
+            @Override
+            public void onNext(StreamingRecognizeResponse response) {
+                if (response.getResultsCount() == 0) {
+                    return;
+                }
+                final StreamingRecognitionResult result = response.getResults(0);
+                if (result.getAlternativesCount() == 0) {
+                    return;
+                }
+                final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
+                synchronized (mResultLock) {
+                    if (!mInterimReceived && !result.getIsFinal()) {
+                        mInterimReceived = true;
+                        mStats.getFirstInterimMillis().record(
+                                SystemClock.elapsedRealtime() - mStartedMillis);
+                    } else if (!mFinalReceived && result.getIsFinal()) {
+                        mFinalReceived = true;
+                        mStats.getFinalMillis().record(
+                                SystemClock.elapsedRealtime() - mStartedMillis);
+                    }
+                    final boolean previousPending = mPrevious != null;
+                    if (!result.getIsFinal()) {
+                        // Interim results of the overlap would repeat what the previous stream
+                        // says.
+                        if (!previousPending) {
+                            final TranscriptDelta delta = mAssembler.update(
+                                    response.getResultsList(),
+                                    mWindow.getStreamStartMillis());
+                            if (delta != null) {
+                                mDispatcher.dispatchInterim(delta);
+                            }
+                        }
+                        return;
+                    }
+                    final String text = mWindow.stitch(alternative);
+                    if (text == null) {
+                        return;
+                    }
+                    if (previousPending) {
+                        mPendingFinals.add(text);
+                    } else {
+                        mAssembler.reset();
+                        deliverResult(text);
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Log.e(TAG, "Error calling the API.", t);
+                complete();
+            }
+
+            @Override
+            public void onCompleted() {
+                Log.i(TAG, "API completed.");
+                complete();
+            }
+
+            private void complete() {
+                synchronized (mResultLock) {
+                    mCompleted = true;
+                    if (mPrevious == null) {
+                        releaseNext();
+                    }
+                }
+            }
+
+            /**
+             * @return {@code true} once this stream and the ones before it have delivered all of
+             * their results. Guarded by {@link #mResultLock}.
+             */
+            boolean isDelivered() {
+                return mCompleted && mPrevious == null;
+            }
+
+            private void releaseNext() {
+                if (mNext != null) {
+                    mNext.flushPendingFinals();
+                    mNext = null;
+                }
+            }
+
+            private void flushPendingFinals() {
+                mPrevious = null;
+                for (String text : mPendingFinals) {
+                    mAssembler.reset();
+                    deliverResult(text);
+                }
+                mPendingFinals.clear();
+                if (mCompleted) {
+                    releaseNext();
+                }
+            }
+
+        }
 
     }
 
-    private static final String TAG = "SpeechService";
+    /**
+     * Recognizes audio read from a {@link ReadableByteChannel} in a series of
+     * {@code streamingRecognize} calls.
+     */
+    private class FileRecognition {
+
+        private final ReadableByteChannel mChannel;
+
+        private final int mSampleRate;
+
+        private final String mLanguageCode;
+
+        private final AudioFramePool mFramePool;
+
+        /** The maximum amount of audio sent in a single stream. */
+        private final long mStreamLimitBytes;
+
+        /** Written by the reader, and read when a stream completes. */
+        private volatile boolean mEndOfInput;
+
+        private long mTotalSentBytes;
+
+        FileRecognition(ReadableByteChannel channel, int sampleRate, String languageCode) {
+            mChannel = channel;
+            mSampleRate = sampleRate;
+            mLanguageCode = languageCode;
+            mFramePool = new AudioFramePool(
+                    AudioHistory.capacityFor(FILE_CHUNK_MILLIS, sampleRate),
+                    FILE_READ_AHEAD_CHUNKS);
+            mStreamLimitBytes = (long) STREAM_LIMIT_MILLIS * sampleRate / 1000 * 2;
+        }
+
+        void start() {
+            final SpeechGrpc.SpeechStub api = mApi;
+            if (api == null) {
+                // The service was destroyed between two streams.
+                finish(Status.UNAVAILABLE.withDescription("API not available").asException());
+                return;
+            }
+            ClientCalls.asyncBidiStreamingCall(
+                    api.getChannel().newCall(AudioRequest.STREAMING_RECOGNIZE,
+                            api.getCallOptions()),
+                    new Segment());
+        }
+
+        /**
+         * Reads from {@link #mChannel} until {@code frame} is full or the input ends.
+         */
+        int fill(AudioFrame frame) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(frame.getData());
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer) < 0) {
+                    mEndOfInput = true;
+                    break;
+                }
+            }
+            return buffer.position();
+        }
+
+        /**
+         * Called as the audio is sent.
+         *
+         * @param sentBytes The total amount of audio sent.
+         */
+        void onProgress(long sentBytes) {
+        }
+
+        /**
+         * Called for each final result.
+         */
+        void onResult(String text) {
+            deliverResult(text);
+        }
 
-    private static final String PREFS = "SpeechService";
-    private static final String PREF_ACCESS_TOKEN_VALUE = "access_token_value";
-    private static final String PREF_ACCESS_TOKEN_EXPIRATION_TIME = "access_token_expiration_time";
+        /**
+         * Called once when the recognition is done.
+         *
+         * @param error The error, or {@code null} if all the audio was recognized.
+         */
+        void onFinished(Throwable error) {
+        }
 
-    /** We reuse an access token if its expiration time is longer than this. */
-    private static final int ACCESS_TOKEN_EXPIRATION_TOLERANCE = 30 * 60 * 1000; // thirty minutes
-    /** We refresh the current access token before it expires. */
-    private static final int ACCESS_TOKEN_FETCH_MARGIN = 60 * 1000; // one minute
+        void finish(Throwable error) {
+            closeQuietly(mChannel);
+            onFinished(error);
+        }
 
-    public static final List<String> SCOPE =
-            Collections.singletonList("https://www.googleapis.com/auth/cloud-platform");
-    private static final String HOSTNAME = "speech.googleapis.com";
-    private static final int PORT = 443;
+        /**
+         * A single stream, fed whenever gRPC can take more requests.
+         *
+         * <p>The audio is read on {@link #mFileExecutor}, a few chunks ahead, and only sent from
+         * the gRPC callbacks, which never wait for the input. The fields are guarded by this.</p>
+         */
+        private class Segment implements
+                ClientResponseObserver<AudioRequest, StreamingRecognizeResponse>, Runnable {
 
-    private final SpeechBinder mBinder = new SpeechBinder();
-    private final ArrayList<Listener> mListeners = new ArrayList<>();
-    private volatile AccessTokenTask mAccessTokenTask;
-    private SpeechGrpc.SpeechStub mApi;
-    private static Handler mHandler;
+            private final ArrayDeque<AudioFrame> mReadFrames = new ArrayDeque<>();
 
-    private final StreamObserver<StreamingRecognizeResponse> mResponseObserver
-            = new StreamObserver<StreamingRecognizeResponse>() {
-        @Override
-        public void onNext(StreamingRecognizeResponse response) {
-            String text = null;
-            boolean isFinal = false;
-            if (response.getResultsCount() > 0) {
-                final StreamingRecognitionResult result = response.getResults(0);
-                isFinal = result.getIsFinal();
-                if (result.getAlternativesCount() > 0) {
-                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
-                    text = alternative.getTranscript();
+            private final Runnable mReader = new Runnable() {
+                @Override
+                public void run() {
+                    read();
                 }
+            };
+
+            private ClientCallStreamObserver<AudioRequest> mRequests;
+
+            private boolean mConfigSent;
+
+            private boolean mHalfClosed;
+
+            private boolean mReading;
+
+            /** Set once this stream has read all of its audio. */
+            private boolean mReadDone;
+
+            private IOException mReadError;
+
+            private long mReadBytes;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<AudioRequest> requests) {
+                mRequests = requests;
+                requests.setOnReadyHandler(this);
             }
-            if (text != null) {
-                for (Listener listener : mListeners) {
-                    listener.onSpeechRecognized(text, isFinal);
+
+            /**
+             * Sends as much audio as the call can buffer. Called whenever the call becomes ready.
+             */
+            @Override
+            public synchronized void run() {
+                if (mHalfClosed) {
+                    return;
+                }
+                if (!mConfigSent) {
+                    mRequests.onNext(AudioRequest.config(StreamingRecognitionConfig.newBuilder()
+                            .setConfig(RecognitionConfig.newBuilder()
+                                    .setLanguageCode(mLanguageCode)
+                                    .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                                    .setSampleRateHertz(mSampleRate)
+                                    .build())
+                            .build()));
+                    mConfigSent = true;
+                    mStats.onStreamOpened();
+                }
+                while (mRequests.isReady()) {
+                    final AudioFrame frame = mReadFrames.poll();
+                    if (frame == null) {
+                        if (mReadError != null) {
+                            mHalfClosed = true;
+                            mRequests.onError(mReadError);
+                            return;
+                        }
+                        if (mReadDone) {
+                            mHalfClosed = true;
+                            mRequests.onCompleted();
+                            return;
+                        }
+                        // Called again by the reader once it has more.
+                        break;
+                    }
+                    final int size = frame.getSize();
+                    mRequests.onNext(AudioRequest.audio(frame));
+                    mTotalSentBytes += size;
+                    mStats.onAudioSent(size);
+                    onProgress(mTotalSentBytes);
+                    frame.release();
                 }
+                readAhead();
             }
-        }
-
-        @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "Error calling the API.", t);
-        }
 
-        @Override
-        public void onCompleted() {
-            Log.i(TAG, "API completed.");
-        }
+            /**
+             * Starts the reader unless it is running, or enough audio is already read.
+             */
+            private void readAhead() {
+                if (mReading || mReadDone || mReadFrames.size() >= FILE_READ_AHEAD_CHUNKS) {
+                    return;
+                }
+                mReading = true;
+                try {
+                    mFileExecutor.execute(mReader);
+                } catch (RejectedExecutionException e) {
+                    // The service is shutting down.
+                    mReading = false;
+                    mReadError = new IOException("Recognition cancelled", e);
+                    mReadDone = true;
+                }
+            }
 
-    };
+            /**
+             * Reads chunks until enough are waiting to be sent. Runs on {@link #mFileExecutor}.
+             */
+            private void read() {
+                while (true) {
+                    final AudioFrame frame = mFramePool.acquire();
+                    IOException error = null;
+                    int size = 0;
+                    try {
+                        size = fill(frame);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error loading the input", e);
+                        error = e;
+                    }
+                    final boolean more;
+                    synchronized (this) {
+                        if (size > 0 && !mHalfClosed) {
+                            frame.setSize(size);
+                            mReadFrames.add(frame);
+                            mReadBytes += size;
+                        } else {
+                            frame.release();
+                        }
+                        if (error != null) {
+                            mReadError = error;
+                        }
+                        if (error != null || mEndOfInput || mReadBytes >= mStreamLimitBytes) {
+                            mReadDone = true;
+                        }
+                        more = !mHalfClosed && !mReadDone
+                                && mReadFrames.size() < FILE_READ_AHEAD_CHUNKS;
+                        if (!more) {
+                            mReading = false;
+                        }
+                        // Sends what was read, if the call is ready for it.
+                        run();
+                    }
+                    if (!more) {
+                        return;
+                    }
+                }
+            }
 
-    private final StreamObserver<RecognizeResponse> mFileResponseObserver
-            = new StreamObserver<RecognizeResponse>() {
-        @Override
-        public void onNext(RecognizeResponse response) {
-            String text = null;
-            if (response.getResultsCount() > 0) {
-                final SpeechRecognitionResult result = response.getResults(0);
-                if (result.getAlternativesCount() > 0) {
-                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
-                    text = alternative.getTranscript();
+            @Override
+            public void onNext(StreamingRecognizeResponse response) {
+                for (StreamingRecognitionResult result : response.getResultsList()) {
+                    if (result.getIsFinal() && result.getAlternativesCount() > 0) {
+                        onResult(result.getAlternatives(0).getTranscript());
+                    }
                 }
             }
-            if (text != null) {
-                for (Listener listener : mListeners) {
-                    listener.onSpeechRecognized(text, true);
+
+            @Override
+            public void onError(Throwable t) {
+                Log.e(TAG, "Error calling the API.", t);
+                finish(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                if (mEndOfInput) {
+                    Log.i(TAG, "API completed.");
+                    finish(null);
+                } else {
+                    // Continue with the rest of the audio in a new stream.
+                    start();
                 }
             }
-        }
 
-        @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "Error calling the API.", t);
         }
 
-        @Override
-        public void onCompleted() {
-            Log.i(TAG, "API completed.");
-        }
+    }
 
-    };
+    /**
+     * Runs the items of a batch with a limited concurrency.
+     */
+    private class BatchRecognition {
 
-    private StreamObserver<StreamingRecognizeRequest> mRequestObserver;
+        private final List<AudioSource> mSources;
 
-    public static SpeechService from(IBinder binder) {
-        return ((SpeechBinder) binder).getService();
-    }
+        private final int mSampleRate;
 
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        mHandler = new Handler();
-        fetchAccessToken();
-    }
+        private final String mLanguageCode;
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        mHandler.removeCallbacks(mFetchAccessTokenRunnable);
-        mHandler = null;
-        // Release the gRPC channel.
-        if (mApi != null) {
-            final ManagedChannel channel = (ManagedChannel) mApi.getChannel();
-            if (channel != null && !channel.isShutdown()) {
-                try {
-                    channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Error shutting down the gRPC channel.", e);
+        private final BatchListener mListener;
+
+        private final Random mRandom = new Random();
+
+        // The fields below are guarded by this.
+
+        private int mNext;
+
+        private int mRemaining;
+
+        BatchRecognition(List<AudioSource> sources, int sampleRate, String languageCode,
+                BatchListener listener) {
+            mSources = sources;
+            mSampleRate = sampleRate;
+            mLanguageCode = languageCode;
+            mListener = listener;
+            mRemaining = sources.size();
+        }
+
+        void start(int maxConcurrency) {
+            if (mSources.isEmpty()) {
+                mListener.onBatchCompleted();
+                return;
+            }
+            for (int i = 0; i < maxConcurrency; i++) {
+                startNext();
+            }
+        }
+
+        private void startNext() {
+            final int index;
+            synchronized (this) {
+                if (mNext >= mSources.size()) {
+                    return;
                 }
+                index = mNext++;
             }
-            mApi = null;
+            schedule(new BatchItem(index), 0);
         }
-    }
 
-    private void fetchAccessToken() {
-        if (mAccessTokenTask != null) {
-            return;
+        /**
+         * Runs an attempt on {@link #mBatchExecutor}, as opening the source may block.
+         */
+        private void schedule(BatchItem item, long delayMillis) {
+            try {
+                mBatchExecutor.schedule(item, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The service is shutting down.
+                item.fail(Status.CANCELLED.withDescription("Service destroyed").asException());
+            }
         }
-        mAccessTokenTask = new AccessTokenTask();
-        mAccessTokenTask.execute();
-    }
 
-    private String getDefaultLanguageCode() {
-        final Locale locale = Locale.getDefault();
-        final StringBuilder language = new StringBuilder(locale.getLanguage());
-        final String country = locale.getCountry();
-        if (!TextUtils.isEmpty(country)) {
-            language.append("-");
-            language.append(country);
+        private void onItemDone() {
+            final boolean done;
+            synchronized (this) {
+                done = --mRemaining == 0;
+            }
+            if (done) {
+                mListener.onBatchCompleted();
+            } else {
+                startNext();
+            }
         }
-        return language.toString();
-    }
 
-    @Nullable
-    @Override
-    public IBinder onBind(Intent intent) {
-        return mBinder;
-    }
+        private class BatchItem implements Runnable {
 
-    public void addListener(@NonNull Listener listener) {
-        mListeners.add(listener);
-    }
+            private final int mIndex;
 
-    public void removeListener(@NonNull Listener listener) {
-        mListeners.remove(listener);
-    }
+            private final long mStartedMillis = SystemClock.elapsedRealtime();
 
-    /**
-     * Starts recognizing speech audio.
-     *
-     * @param sampleRate The sample rate of the audio.
-     */
-    public void startRecognizing(int sampleRate) {
-        if (mApi == null) {
-            Log.w(TAG, "API not ready. Ignoring the request.");
-            return;
-        }
-        // Configure the API
-        mRequestObserver = mApi.streamingRecognize(mResponseObserver);
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
-                        .setConfig(RecognitionConfig.newBuilder()
-                                .setLanguageCode(getDefaultLanguageCode())
-                                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                .setSampleRateHertz(sampleRate)
-                                .build())
-                        .setInterimResults(true)
-                        .setSingleUtterance(true)
-                        .build())
-                .build());
-    }
+            private int mAttempts;
 
-    /**
-     * Recognizes the speech audio. This method should be called every time a chunk of byte buffer
-     * is ready.
-     *
-     * @param data The audio data.
-     * @param size The number of elements that are actually relevant in the {@code data}.
-     */
-    public void recognize(byte[] data, int size) {
-        if (mRequestObserver == null) {
-            return;
-        }
-        // Call the streaming recognition API
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setAudioContent(ByteString.copyFrom(data, 0, size))
-                .build());
-    }
+            BatchItem(int index) {
+                mIndex = index;
+            }
+
+            @Override
+            public void run() {
+                attempt();
+            }
+
+            void attempt() {
+                mAttempts++;
+                if (mApi == null) {
+                    // The access token may still be on its way.
+                    retryOrFail(Status.UNAVAILABLE.withDescription("API not ready").asException());
+                    return;
+                }
+                final AudioSource source = mSources.get(mIndex);
+                final ReadableByteChannel channel;
+                try {
+                    channel = source.open();
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                final long length = source.getLength();
+                final StringBuilder transcript = new StringBuilder();
+                new FileRecognition(channel, mSampleRate, mLanguageCode) {
+                    @Override
+                    void onProgress(long sentBytes) {
+                        mListener.onItemProgress(mIndex, sentBytes, length);
+                    }
+
+                    @Override
+                    void onResult(String text) {
+                        if (transcript.length() > 0) {
+                            transcript.append(' ');
+                        }
+                        transcript.append(text.trim());
+                    }
+
+                    @Override
+                    void onFinished(Throwable error) {
+                        if (error == null) {
+                            mListener.onItemCompleted(mIndex, transcript.toString(),
+                                    SystemClock.elapsedRealtime() - mStartedMillis);
+                            onItemDone();
+                        } else {
+                            retryOrFail(error);
+                        }
+                    }
+                }.start();
+            }
+
+            private void retryOrFail(Throwable error) {
+                if (mAttempts >= BATCH_MAX_ATTEMPTS || !isTransient(error)) {
+                    fail(error);
+                    return;
+                }
+                // Exponential backoff with jitter, so that parallel items do not retry together.
+                final long backoff = Math.min(BATCH_MAX_BACKOFF_MILLIS,
+                        BATCH_INITIAL_BACKOFF_MILLIS << (mAttempts - 1));
+                final long delay;
+                synchronized (mRandom) {
+                    delay = backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+                }
+                Log.w(TAG, "Retrying item " + mIndex + " in " + delay + " ms.");
+                schedule(this, delay);
+            }
+
+            private void fail(Throwable error) {
+                mListener.onItemFailed(mIndex, error,
+                        SystemClock.elapsedRealtime() - mStartedMillis);
+                onItemDone();
+            }
 
-    /**
-     * Finishes recognizing speech audio.
-     */
-    public void finishRecognizing() {
-        if (mRequestObserver == null) {
-            return;
         }
-        mRequestObserver.onCompleted();
-        mRequestObserver = null;
+
     }
 
-    /**
-     * Recognize all data from the specified {@link InputStream}.
-     *
-     * @param stream The audio data.
-     */
-    public void recognizeInputStream(InputStream stream) {
-        try {
-            mApi.recognize(
-                    RecognizeRequest.newBuilder()
-                            .setConfig(RecognitionConfig.newBuilder()
-                                    .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                    .setLanguageCode("en-US")
-                                    .setSampleRateHertz(16000)
-                                    .build())
-                            .setAudio(RecognitionAudio.newBuilder()
-                                    .setContent(ByteString.readFrom(stream))
-                                    .build())
-                            .build(),
-                    mFileResponseObserver);
-        } catch (IOException e) {
-            Log.e(TAG, "Error loading the input", e);
-        }
+    static long toMillis(Duration duration) {
+        return duration.getSeconds() * 1000 + duration.getNanos() / 1000000;
     }
 
     private class SpeechBinder extends Binder {
@@ -322,6 +1775,29 @@ public class SpeechService extends Service {
 
     }
 
+    private void setAccessToken(AccessToken accessToken) {
+        if (mChannel == null) {
+            return;
+        }
+        // Keep the connection; only the headers of the subsequent calls change.
+        mCredentialsInterceptor.setCredentials(
+                new GoogleCredentials(accessToken).createScoped(SCOPE));
+        if (mApi == null) {
+            mApi = SpeechGrpc.newStub(mChannel);
+            final long elapsed = SystemClock.elapsedRealtime() - mCreatedMillis;
+            mStats.getStartupTokenMillis().record(elapsed);
+            Log.i(TAG, "Access token ready " + elapsed + " ms after start.");
+            if (mConnected) {
+                mStats.getStartupReadyMillis().record(elapsed);
+            }
+            // Send the audio heard while the service was starting.
+            mDefaultSession.flushPendingAudio();
+            for (Session session : mSessions) {
+                session.flushPendingAudio();
+            }
+        }
+    }
+
     private final Runnable mFetchAccessTokenRunnable = new Runnable() {
         @Override
         public void run() {
@@ -329,7 +1805,7 @@ public class SpeechService extends Service {
         }
     };
 
-    private class AccessTokenTask extends AsyncTask<Void, Void, AccessToken> {
+    private class AccessTokenTask extends AsyncTask<Void, AccessToken, AccessToken> {
 
         @Override
         protected AccessToken doInBackground(Void... voids) {
@@ -337,6 +1813,10 @@ public class SpeechService extends Service {
                     getSharedPreferences(PREFS, Context.MODE_PRIVATE);
             String tokenValue = prefs.getString(PREF_ACCESS_TOKEN_VALUE, null);
             long expirationTime = prefs.getLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME, -1);
+            if (mApi == null) {
+                mStats.getStartupCachedTokenMillis().record(
+                        SystemClock.elapsedRealtime() - mCreatedMillis);
+            }
 
             // Check if the current token is still valid for a while
             if (tokenValue != null && expirationTime > 0) {
@@ -344,6 +1824,10 @@ public class SpeechService extends Service {
                         > System.currentTimeMillis() + ACCESS_TOKEN_EXPIRATION_TOLERANCE) {
                     return new AccessToken(tokenValue, new Date(expirationTime));
                 }
+                // Still usable; start with it rather than wait for the refresh below.
+                if (expirationTime > System.currentTimeMillis() + ACCESS_TOKEN_FETCH_MARGIN) {
+                    publishProgress(new AccessToken(tokenValue, new Date(expirationTime)));
+                }
             }
 
             // ***** WARNING *****
@@ -355,7 +1839,9 @@ public class SpeechService extends Service {
             try {
                 final GoogleCredentials credentials = GoogleCredentials.fromStream(stream)
                         .createScoped(SCOPE);
+                final long start = SystemClock.elapsedRealtime();
                 final AccessToken token = credentials.refreshAccessToken();
+                mStats.getTokenRefreshMillis().record(SystemClock.elapsedRealtime() - start);
                 prefs.edit()
                         .putString(PREF_ACCESS_TOKEN_VALUE, token.getTokenValue())
                         .putLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME,
@@ -368,16 +1854,18 @@ public class SpeechService extends Service {
             return null;
         }
 
+        @Override
+        protected void onProgressUpdate(AccessToken... cachedToken) {
+            setAccessToken(cachedToken[0]);
+        }
+
         @Override
         protected void onPostExecute(AccessToken accessToken) {
             mAccessTokenTask = null;
-            final ManagedChannel channel = new OkHttpChannelProvider()
-                    .builderForAddress(HOSTNAME, PORT)
-                    .nameResolverFactory(new DnsNameResolverProvider())
-                    .intercept(new GoogleCredentialsInterceptor(new GoogleCredentials(accessToken)
-                            .createScoped(SCOPE)))
-                    .build();
-            mApi = SpeechGrpc.newStub(channel);
+            if (accessToken == null || mChannel == null) {
+                return;
+            }
+            setAccessToken(accessToken);
 
             // Schedule access token refresh before it expires
             if (mHandler != null) {
@@ -391,17 +1879,50 @@ public class SpeechService extends Service {
 
     /**
      * Authenticates the gRPC channel using the specified {@link GoogleCredentials}.
+     *
+     * <p>The credentials can be replaced at any time with {@link #setCredentials(Credentials)}
+     * without affecting the underlying connection.</p>
      */
     private static class GoogleCredentialsInterceptor implements ClientInterceptor {
 
-        private final Credentials mCredentials;
+        private volatile Credentials mCredentials;
 
-        private Metadata mCached;
+        /** Incremented whenever {@link #mCredentials} is replaced. */
+        private volatile long mGeneration;
 
-        private Map<String, List<String>> mLastMetadata;
+        /** The headers built from the current credentials. Never modified once published. */
+        private volatile HeaderSnapshot mSnapshot;
 
+        /** The service URI of each method, computed on the first call of the method. */
+        private final ConcurrentHashMap<MethodDescriptor<?, ?>, URI> mServiceUris =
+                new ConcurrentHashMap<>();
+
+        /** Set when the credentials change, and cleared by the first call after that. */
+        private final AtomicBoolean mFirstCallPending;
+
+        private volatile long mFirstCallLatencyMillis = -1;
+
+        /**
+         * @param credentials The credentials, or {@code null} to send calls without them until
+         *                    {@link #setCredentials(Credentials)}.
+         */
         GoogleCredentialsInterceptor(Credentials credentials) {
             mCredentials = credentials;
+            mFirstCallPending = new AtomicBoolean(credentials != null);
+        }
+
+        /**
+         * Replaces the credentials. The credentials must return the same metadata until they
+         * are replaced again, as the metadata is cached. Called on the main thread.
+         */
+        void setCredentials(Credentials credentials) {
+            mCredentials = credentials;
+            mGeneration++;
+            mFirstCallPending.set(true);
+        }
+
+        long getFirstCallLatencyMillis() {
+            return mFirstCallLatencyMillis;
         }
 
         @Override
@@ -413,22 +1934,41 @@ public class SpeechService extends Service {
                 @Override
                 protected void checkedStart(Listener<RespT> responseListener, Metadata headers)
                         throws StatusException {
-                    Metadata cachedSaved;
-                    URI uri = serviceUri(next, method);
-                    synchronized (this) {
-                        Map<String, List<String>> latestMetadata = getRequestMetadata(uri);
-                        if (mLastMetadata == null || mLastMetadata != latestMetadata) {
-                            mLastMetadata = latestMetadata;
-                            mCached = toHeaders(mLastMetadata);
-                        }
-                        cachedSaved = mCached;
+                    headers.merge(getHeaders(next, method));
+                    if (mFirstCallPending.compareAndSet(true, false)) {
+                        responseListener = new FirstCallListener<>(responseListener);
                     }
-                    headers.merge(cachedSaved);
                     delegate().start(responseListener, headers);
                 }
             };
         }
 
+        /**
+         * Returns the headers for a call. In the common case, this is only a volatile read.
+         */
+        private Metadata getHeaders(Channel channel, MethodDescriptor<?, ?> method)
+                throws StatusException {
+            if (mCredentials == null) {
+                return new Metadata();
+            }
+            URI uri = mServiceUris.get(method);
+            if (uri == null) {
+                uri = serviceUri(channel, method);
+                mServiceUris.put(method, uri);
+            }
+            final long generation = mGeneration;
+            final HeaderSnapshot snapshot = mSnapshot;
+            if (snapshot != null && snapshot.mGeneration == generation
+                    && snapshot.mUri.equals(uri)) {
+                return snapshot.mHeaders;
+            }
+            // Racing calls may build the same snapshot; any of them can be published.
+            final HeaderSnapshot latest = new HeaderSnapshot(generation, uri,
+                    toHeaders(getRequestMetadata(uri)));
+            mSnapshot = latest;
+            return latest.mHeaders;
+        }
+
         /**
          * Generate a JWT-specific service URI. The URI is simply an identifier with enough
          * information for a service to know that the JWT was intended for it. The URI will
@@ -480,6 +2020,43 @@ public class SpeechService extends Service {
             }
         }
 
+        private static class HeaderSnapshot {
+
+            final long mGeneration;
+
+            final URI mUri;
+
+            final Metadata mHeaders;
+
+            HeaderSnapshot(long generation, URI uri, Metadata headers) {
+                mGeneration = generation;
+                mUri = uri;
+                mHeaders = headers;
+            }
+
+        }
+
+        /**
+         * Measures the time until the response headers of the first call after a refresh.
+         */
+        private class FirstCallListener<RespT>
+                extends ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT> {
+
+            private final long mStartedMillis = SystemClock.elapsedRealtime();
+
+            FirstCallListener(ClientCall.Listener<RespT> delegate) {
+                super(delegate);
+            }
+
+            @Override
+            public void onHeaders(Metadata headers) {
+                mFirstCallLatencyMillis = SystemClock.elapsedRealtime() - mStartedMillis;
+                Log.i(TAG, "First call after refresh: " + mFirstCallLatencyMillis + " ms.");
+                super.onHeaders(headers);
+            }
+
+        }
+
         private static Metadata toHeaders(Map<String, List<String>> metadata) {
             Metadata headers = new Metadata();
             if (metadata != null) {
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Latency and throughput statistics of {@link SpeechService}. All the methods are thread-safe and
+ * lock-free.
+ *
+ * <p>Latencies are measured in milliseconds from {@link SpeechService#startRecognizing(int)},
+ * which is called when the voice is first heard.</p>
+ */
+public class SpeechStats {
+
+    /** Also receives all the statistics of this one, or {@code null}. */
+    private final SpeechStats mParent;
+
+    private final Histogram mStreamOpenMillis;
+
+    private final Histogram mStreamConnectMillis;
+
+    private final Histogram mFirstInterimMillis;
+
+    private final Histogram mFinalMillis;
+
+    private final Histogram mRequestsPerStream;
+
+    private final Histogram mTokenRefreshMillis;
+
+    private final Histogram mChunkMillis;
+
+    private final Histogram mStartupCachedTokenMillis;
+
+    private final Histogram mStartupConnectedMillis;
+
+    private final Histogram mStartupTokenMillis;
+
+    private final Histogram mStartupReadyMillis;
+
+    private final AtomicLong mStreams = new AtomicLong();
+
+    private final AtomicLong mAudioBytesSent = new AtomicLong();
+
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+
+    private final AtomicLong mPendingOverflowFrames = new AtomicLong();
+
+    private final AtomicLong mOutboundQueuedBytes = new AtomicLong();
+
+    private final AtomicLong mOutboundDroppedFrames = new AtomicLong();
+
+    public SpeechStats() {
+        this(null);
+    }
+
+    /**
+     * @param parent The statistics that these roll up into, such as those of the whole service
+     *               for a {@link SpeechService.Session}, or {@code null}.
+     */
+    SpeechStats(SpeechStats parent) {
+        mParent = parent;
+        mStreamOpenMillis = new Histogram("stream_open_ms",
+                parent != null ? parent.mStreamOpenMillis : null);
+        mStreamConnectMillis = new Histogram("stream_connect_ms",
+                parent != null ? parent.mStreamConnectMillis : null);
+        mFirstInterimMillis = new Histogram("first_interim_ms",
+                parent != null ? parent.mFirstInterimMillis : null);
+        mFinalMillis = new Histogram("final_ms", parent != null ? parent.mFinalMillis : null);
+        mRequestsPerStream = new Histogram("requests_per_stream",
+                parent != null ? parent.mRequestsPerStream : null);
+        mTokenRefreshMillis = new Histogram("token_refresh_ms",
+                parent != null ? parent.mTokenRefreshMillis : null);
+        mChunkMillis = new Histogram("chunk_ms", parent != null ? parent.mChunkMillis : null);
+        mStartupCachedTokenMillis = new Histogram("startup_cached_token_ms",
+                parent != null ? parent.mStartupCachedTokenMillis : null);
+        mStartupConnectedMillis = new Histogram("startup_connected_ms",
+                parent != null ? parent.mStartupConnectedMillis : null);
+        mStartupTokenMillis = new Histogram("startup_token_ms",
+                parent != null ? parent.mStartupTokenMillis : null);
+        mStartupReadyMillis = new Histogram("startup_ready_ms",
+                parent != null ? parent.mStartupReadyMillis : null);
+    }
+
+    /**
+     * @return The time from the start of the recognition, or of the replacement of a stream,
+     * until the stream is ready to send audio.
+     */
+    public Histogram getStreamOpenMillis() {
+        return mStreamOpenMillis;
+    }
+
+    /**
+     * @return The time from the creation of each stream until it is ready to send audio.
+     */
+    public Histogram getStreamConnectMillis() {
+        return mStreamConnectMillis;
+    }
+
+    /**
+     * @return The time from the start of the recognition until its first interim result.
+     */
+    public Histogram getFirstInterimMillis() {
+        return mFirstInterimMillis;
+    }
+
+    /**
+     * @return The time from the start of the recognition until its first final result.
+     */
+    public Histogram getFinalMillis() {
+        return mFinalMillis;
+    }
+
+    /**
+     * @return The number of requests sent in each stream, including the configuration.
+     */
+    public Histogram getRequestsPerStream() {
+        return mRequestsPerStream;
+    }
+
+    /**
+     * @return The time it takes to obtain a new access token.
+     */
+    public Histogram getTokenRefreshMillis() {
+        return mTokenRefreshMillis;
+    }
+
+    /**
+     * @return The length of audio sent in each request, as chosen by the adaptive chunk sizing.
+     */
+    public Histogram getChunkMillis() {
+        return mChunkMillis;
+    }
+
+    /**
+     * @return The time from the start of the service until the cached access token was read.
+     */
+    public Histogram getStartupCachedTokenMillis() {
+        return mStartupCachedTokenMillis;
+    }
+
+    /**
+     * @return The time from the start of the service until the connection to the API was set
+     * up, including the DNS lookup and the TLS handshake.
+     */
+    public Histogram getStartupConnectedMillis() {
+        return mStartupConnectedMillis;
+    }
+
+    /**
+     * @return The time from the start of the service until an access token was available,
+     * either from the cache or from a refresh.
+     */
+    public Histogram getStartupTokenMillis() {
+        return mStartupTokenMillis;
+    }
+
+    /**
+     * @return The time from the start of the service until it was both connected and had an
+     * access token.
+     */
+    public Histogram getStartupReadyMillis() {
+        return mStartupReadyMillis;
+    }
+
+    /**
+     * @return The number of streams opened.
+     */
+    public long getStreams() {
+        return mStreams.get();
+    }
+
+    /**
+     * @return The number of bytes of audio sent to the API, after encoding.
+     */
+    public long getAudioBytesSent() {
+        return mAudioBytesSent.get();
+    }
+
+    /**
+     * @return The number of audio frames dropped by the {@link VoiceRecorder}.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * @return The number of audio frames dropped because the API was not ready, and too much
+     * audio was already waiting for it, or it took too long to become ready.
+     */
+    public long getPendingOverflowFrames() {
+        return mPendingOverflowFrames.get();
+    }
+
+    /**
+     * @return The amount of audio currently waiting for the network to send it, in bytes. This is
+     * a gauge; it is not cleared by {@link #reset()}.
+     */
+    public long getOutboundQueuedBytes() {
+        return mOutboundQueuedBytes.get();
+    }
+
+    /**
+     * @return The number of audio frames dropped because the network could not keep up.
+     */
+    public long getOutboundDroppedFrames() {
+        return mOutboundDroppedFrames.get();
+    }
+
+    void onStreamOpened() {
+        mStreams.incrementAndGet();
+        if (mParent != null) {
+            mParent.onStreamOpened();
+        }
+    }
+
+    void onAudioSent(int bytes) {
+        mAudioBytesSent.addAndGet(bytes);
+        if (mParent != null) {
+            mParent.onAudioSent(bytes);
+        }
+    }
+
+    /**
+     * Adds to the number of audio frames dropped before they reached the service.
+     *
+     * @param count The number of newly dropped frames.
+     */
+    public void addDroppedFrames(long count) {
+        mDroppedFrames.addAndGet(count);
+        if (mParent != null) {
+            mParent.addDroppedFrames(count);
+        }
+    }
+
+    void addPendingOverflowFrames(long count) {
+        mPendingOverflowFrames.addAndGet(count);
+        if (mParent != null) {
+            mParent.addPendingOverflowFrames(count);
+        }
+    }
+
+    void addOutboundQueuedBytes(long bytes) {
+        mOutboundQueuedBytes.addAndGet(bytes);
+        if (mParent != null) {
+            mParent.addOutboundQueuedBytes(bytes);
+        }
+    }
+
+    void addOutboundDroppedFrames(long count) {
+        mOutboundDroppedFrames.addAndGet(count);
+        if (mParent != null) {
+            mParent.addOutboundDroppedFrames(count);
+        }
+    }
+
+    /**
+     * Discards all the statistics. Those already rolled up into the parent are kept there.
+     */
+    public void reset() {
+        mStreamOpenMillis.reset();
+        mStreamConnectMillis.reset();
+        mFirstInterimMillis.reset();
+        mFinalMillis.reset();
+        mRequestsPerStream.reset();
+        mTokenRefreshMillis.reset();
+        mChunkMillis.reset();
+        mStartupCachedTokenMillis.reset();
+        mStartupConnectedMillis.reset();
+        mStartupTokenMillis.reset();
+        mStartupReadyMillis.reset();
+        mStreams.set(0);
+        mAudioBytesSent.set(0);
+        mDroppedFrames.set(0);
+        mPendingOverflowFrames.set(0);
+        mOutboundDroppedFrames.set(0);
+    }
+
+    /**
+     * Writes all the statistics in a human-readable format.
+     *
+     * @param writer The writer.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("streams: " + getStreams());
+        writer.println("audio_bytes_sent: " + getAudioBytesSent());
+        writer.println("dropped_frames: " + getDroppedFrames());
+        writer.println("pending_overflow_frames: " + getPendingOverflowFrames());
+        writer.println("outbound_queued_bytes: " + getOutboundQueuedBytes());
+        writer.println("outbound_dropped_frames: " + getOutboundDroppedFrames());
+        writer.println(mStreamOpenMillis);
+        writer.println(mStreamConnectMillis);
+        writer.println(mFirstInterimMillis);
+        writer.println(mFinalMillis);
+        writer.println(mRequestsPerStream);
+        writer.println(mTokenRefreshMillis);
+        writer.println(mChunkMillis);
+        writer.println(mStartupCachedTokenMillis);
+        writer.println(mStartupConnectedMillis);
+        writer.println(mStartupTokenMillis);
+        writer.println(mStartupReadyMillis);
+        writer.flush();
+    }
+
+}
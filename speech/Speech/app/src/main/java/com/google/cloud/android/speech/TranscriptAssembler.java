@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.WordInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Turns the interim results of an utterance into {@link TranscriptDelta}s.
+ *
+ * <p>An interim response of the API holds a few results, one after another: the first ones are
+ * usually stable, and the last ones are a fresh guess. The transcript is all of them joined
+ * together. Each result is compared with the one at the same position in the previous response,
+ * so that only the text after the first difference is copied into the delta.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+class TranscriptAssembler {
+
+    /** Results at least this stable are not expected to change any more. */
+    static final float STABLE_STABILITY = 0.8f;
+
+    /** The transcripts of the results in the previous response. */
+    private final ArrayList<String> mSegments = new ArrayList<>();
+
+    private int mLength;
+
+    private int mStableLength;
+
+    /**
+     * Takes the results of an interim response.
+     *
+     * @param results           The results of the response.
+     * @param windowStartMillis Words that start before this are left out, as they were already
+     *                          recognized by a previous stream. This is only effective when the
+     *                          results have word time offsets.
+     * @return The change to the transcript, or {@code null} if nothing changed.
+     */
+    TranscriptDelta update(List<StreamingRecognitionResult> results, long windowStartMillis) {
+        int start = 0;
+        int stable = 0;
+        boolean stablePrefix = true;
+        StringBuilder tail = null;
+        int count = 0;
+        for (StreamingRecognitionResult result : results) {
+            if (result.getAlternativesCount() == 0) {
+                continue;
+            }
+            final String segment = transcript(result.getAlternatives(0), windowStartMillis);
+            if (stablePrefix && result.getStability() >= STABLE_STABILITY) {
+                stable += segment.length();
+            } else {
+                stablePrefix = false;
+            }
+            if (tail != null) {
+                tail.append(segment);
+            } else {
+                final String previous = count < mSegments.size() ? mSegments.get(count) : null;
+                if (segment.equals(previous)) {
+                    start += segment.length();
+                } else {
+                    final int common = previous == null ? 0 : commonPrefix(previous, segment);
+                    start += common;
+                    tail = new StringBuilder(segment.length() - common);
+                    tail.append(segment, common, segment.length());
+                }
+            }
+            if (count < mSegments.size()) {
+                mSegments.set(count, segment);
+            } else {
+                mSegments.add(segment);
+            }
+            count++;
+        }
+        while (mSegments.size() > count) {
+            mSegments.remove(mSegments.size() - 1);
+        }
+        if (tail == null && start == mLength && stable == mStableLength) {
+            return null;
+        }
+        final String text = tail == null ? "" : tail.toString();
+        mLength = start + text.length();
+        mStableLength = stable;
+        return new TranscriptDelta(start, text, stable);
+    }
+
+    /**
+     * Starts over with an empty transcript. Call this when the utterance has a final result.
+     */
+    void reset() {
+        mSegments.clear();
+        mLength = 0;
+        mStableLength = 0;
+    }
+
+    private static String transcript(SpeechRecognitionAlternative alternative,
+            long windowStartMillis) {
+        if (windowStartMillis <= 0 || alternative.getWordsCount() == 0) {
+            return alternative.getTranscript();
+        }
+        StringBuilder text = null;
+        for (int i = 0; i < alternative.getWordsCount(); i++) {
+            final WordInfo word = alternative.getWords(i);
+            if (SpeechService.toMillis(word.getStartTime()) < windowStartMillis) {
+                if (text == null) {
+                    text = new StringBuilder();
+                }
+                continue;
+            }
+            if (text == null) {
+                // No word is left out.
+                return alternative.getTranscript();
+            }
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(word.getWord());
+        }
+        return text.toString();
+    }
+
+    private static int commonPrefix(String a, String b) {
+        final int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * A change to the interim transcript of the utterance being recognized.
+ *
+ * <p>The change keeps the first {@link #getStart()} characters of the previous transcript, and
+ * replaces everything after them with {@link #getText()}. The transcript is empty when the
+ * utterance begins, and after each final result.</p>
+ *
+ * <p>The first {@link #getStableLength()} characters of the new transcript are unlikely to change
+ * any more. The rest is a guess that the next results may revise.</p>
+ */
+public class TranscriptDelta {
+
+    private final int mStart;
+
+    private final String mText;
+
+    private final int mStableLength;
+
+    TranscriptDelta(int start, String text, int stableLength) {
+        mStart = start;
+        mText = text;
+        mStableLength = stableLength;
+    }
+
+    /**
+     * @return The number of characters kept from the previous transcript.
+     */
+    public int getStart() {
+        return mStart;
+    }
+
+    /**
+     * @return The text that replaces the previous transcript after {@link #getStart()}.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return The length of the new transcript.
+     */
+    public int getLength() {
+        return mStart + mText.length();
+    }
+
+    /**
+     * @return The number of characters at the beginning of the new transcript that are stable.
+     */
+    public int getStableLength() {
+        return mStableLength;
+    }
+
+    /**
+     * Combines this change with the one that follows it.
+     *
+     * @param next The change made after this one.
+     * @return A change that has the same effect as this one followed by {@code next}.
+     */
+    TranscriptDelta then(TranscriptDelta next) {
+        if (next.mStart <= mStart) {
+            return next;
+        }
+        final int kept = Math.min(next.mStart - mStart, mText.length());
+        return new TranscriptDelta(mStart, mText.substring(0, kept) + next.mText,
+                next.mStableLength);
+    }
+
+    @Override
+    public String toString() {
+        return mStart + ":" + mText;
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * An append-only history of transcripts on disk.
+ *
+ * <p>Each transcript is appended to a log file as its length followed by its UTF-8 bytes, and the
+ * offset of every {@link #PAGE_SIZE}th record is appended to an index file. Reading a transcript
+ * loads its whole page with a single read, and only the last few pages read or written are kept
+ * in memory, so the heap does not grow with the history.</p>
+ *
+ * <p>A write that is cut short, for example when the process is killed, is discarded the next
+ * time the log is opened.</p>
+ *
+ * <p>This class is not thread-safe, except for {@link #getCachedPage(int)}, which other threads
+ * can call to show the transcripts already in memory without waiting for the disk.</p>
+ */
+class TranscriptLog implements Closeable {
+
+    /** The number of transcripts read from the disk at once. */
+    static final int PAGE_SIZE = 32;
+
+    /** The number of pages kept in memory. */
+    static final int MAX_CACHED_PAGES = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int RECORD_HEADER_BYTES = 4;
+
+    private static final int INDEX_ENTRY_BYTES = 8;
+
+    private final RandomAccessFile mLog;
+
+    private final RandomAccessFile mIndex;
+
+    /** The pages read or written most recently, in access order. Guarded by itself. */
+    private final LinkedHashMap<Integer, String[]> mPages =
+            new LinkedHashMap<Integer, String[]>(MAX_CACHED_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+
+    private final byte[] mIndexEntry = new byte[INDEX_ENTRY_BYTES];
+
+    private long mLogLength;
+
+    private int mSize;
+
+    /**
+     * Opens the history in the {@code directory}, creating it if it does not exist.
+     *
+     * @param directory The directory for the log and index files.
+     * @param name      The base name of the files.
+     */
+    TranscriptLog(File directory, String name) throws IOException {
+        mLog = new RandomAccessFile(new File(directory, name + ".log"), "rw");
+        try {
+            mIndex = new RandomAccessFile(new File(directory, name + ".idx"), "rw");
+        } catch (IOException e) {
+            mLog.close();
+            throw e;
+        }
+        try {
+            recover();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of transcripts in the history.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Appends a transcript to the history.
+     *
+     * @param text The transcript.
+     */
+    void append(String text) throws IOException {
+        final byte[] bytes = text.getBytes(UTF_8);
+        final byte[] record = new byte[RECORD_HEADER_BYTES + bytes.length];
+        putInt(record, bytes.length);
+        System.arraycopy(bytes, 0, record, RECORD_HEADER_BYTES, bytes.length);
+        final int page = mSize / PAGE_SIZE;
+        if (mSize % PAGE_SIZE == 0) {
+            // The record starts a new page; index it before the record can be counted.
+            putLong(mIndexEntry, mLogLength);
+            mIndex.seek((long) page * INDEX_ENTRY_BYTES);
+            mIndex.write(mIndexEntry);
+        }
+        mLog.seek(mLogLength);
+        mLog.write(record);
+        mLogLength += record.length;
+        synchronized (mPages) {
+            String[] cached = mPages.get(page);
+            if (cached == null && mSize % PAGE_SIZE == 0) {
+                // The newest transcripts are the ones most likely to be shown.
+                cached = new String[PAGE_SIZE];
+                mPages.put(page, cached);
+            }
+            if (cached != null) {
+                cached[mSize % PAGE_SIZE] = text;
+            }
+        }
+        mSize++;
+    }
+
+    /**
+     * Reads a transcript, loading its page from the disk if it is not in memory.
+     *
+     * @param position The position of the transcript, counting from the oldest one.
+     * @return The transcript.
+     */
+    String get(int position) throws IOException {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid position: " + position);
+        }
+        final int page = position / PAGE_SIZE;
+        String[] texts;
+        synchronized (mPages) {
+            texts = mPages.get(page);
+        }
+        if (texts == null) {
+            texts = readPage(page);
+            synchronized (mPages) {
+                mPages.put(page, texts);
+            }
+        }
+        return texts[position % PAGE_SIZE];
+    }
+
+    /**
+     * Returns a page only if it is in memory. This can be called on any thread.
+     *
+     * @param page The page, counting from the oldest one.
+     * @return The transcripts of the page, where those not written yet are {@code null}, or
+     * {@code null} if the page is not in memory. The array must not be modified.
+     */
+    String[] getCachedPage(int page) {
+        synchronized (mPages) {
+            return mPages.get(page);
+        }
+    }
+
+    /**
+     * @return The number of pages currently held in memory.
+     */
+    int getCachedPageCount() {
+        synchronized (mPages) {
+            return mPages.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mPages) {
+            mPages.clear();
+        }
+        try {
+            mIndex.close();
+        } finally {
+            mLog.close();
+        }
+    }
+
+    private String[] readPage(int page) throws IOException {
+        final long start = readIndex(page);
+        final long end = (page + 1) * PAGE_SIZE < mSize ? readIndex(page + 1) : mLogLength;
+        final byte[] bytes = new byte[(int) (end - start)];
+        mLog.seek(start);
+        mLog.readFully(bytes);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        final String[] texts = new String[PAGE_SIZE];
+        final int count = Math.min(PAGE_SIZE, mSize - page * PAGE_SIZE);
+        for (int i = 0; i < count; i++) {
+            final byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            texts[i] = new String(text, UTF_8);
+        }
+        return texts;
+    }
+
+    private long readIndex(int page) throws IOException {
+        mIndex.seek((long) page * INDEX_ENTRY_BYTES);
+        return mIndex.readLong();
+    }
+
+    /**
+     * Counts the complete records, and cuts off anything written after the last of them.
+     */
+    private void recover() throws IOException {
+        int pages = (int) (mIndex.length() / INDEX_ENTRY_BYTES);
+        final long length = mLog.length();
+        // Drop the pages whose first record never made it to the log.
+        while (pages > 0 && readIndex(pages - 1) >= length) {
+            pages--;
+        }
+        mIndex.setLength((long) pages * INDEX_ENTRY_BYTES);
+        if (pages == 0) {
+            mLog.setLength(0);
+            mLogLength = 0;
+            mSize = 0;
+            return;
+        }
+        // Walk the records of the last page.
+        long offset = readIndex(pages - 1);
+        int count = 0;
+        while (count < PAGE_SIZE && offset + RECORD_HEADER_BYTES <= length) {
+            mLog.seek(offset);
+            final int size = mLog.readInt();
+            if (size < 0 || offset + RECORD_HEADER_BYTES + size > length) {
+                break;
+            }
+            offset += RECORD_HEADER_BYTES + size;
+            count++;
+        }
+        if (count == 0) {
+            mIndex.setLength((long) (pages - 1) * INDEX_ENTRY_BYTES);
+            mLog.setLength(offset);
+            mLogLength = offset;
+            mSize = (pages - 1) * PAGE_SIZE;
+            return;
+        }
+        mLog.setLength(offset);
+        mLogLength = offset;
+        mSize = (pages - 1) * PAGE_SIZE + count;
+    }
+
+    private static void putInt(byte[] b, int value) {
+        b[0] = (byte) (value >>> 24);
+        b[1] = (byte) (value >>> 16);
+        b[2] = (byte) (value >>> 8);
+        b[3] = (byte) value;
+    }
+
+    private static void putLong(byte[] b, long value) {
+        for (int i = 0; i < INDEX_ENTRY_BYTES; i++) {
+            b[i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+}
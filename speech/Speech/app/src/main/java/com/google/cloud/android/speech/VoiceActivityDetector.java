@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Decides whether a chunk of audio contains speech. Used by {@link VoiceRecorder}.
+ *
+ * <p>Implementations are called for every captured frame on the audio capture thread, so they
+ * should not allocate or block.</p>
+ */
+public interface VoiceActivityDetector {
+
+    enum Activity {
+
+        /** No speech. An ongoing utterance ends. */
+        SILENCE,
+
+        /** Speech. A new utterance starts if there is none. */
+        SPEECH,
+
+        /** No speech, but close enough to the last speech that an ongoing utterance continues. */
+        HANGOVER,
+
+    }
+
+    /**
+     * Called when a new recording session starts. Discards all the state learned so far.
+     *
+     * @param sampleRate The sample rate of the audio that follows.
+     */
+    void start(int sampleRate);
+
+    /**
+     * Classifies the next frame of audio.
+     *
+     * @param data The audio data in LINEAR16, little endian, mono.
+     * @param size The size of the actual data in {@code data}.
+     * @return The voice activity in this frame.
+     */
+    Activity process(byte[] data, int size);
+
+}
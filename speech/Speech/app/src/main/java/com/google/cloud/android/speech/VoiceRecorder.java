@@ -21,6 +21,9 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.support.annotation.NonNull;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
  * Continuously records audio and notifies the {@link VoiceRecorder.Callback} when voice (or any
@@ -28,19 +31,40 @@ import android.support.annotation.NonNull;
  *
  * <p>The recorded audio format is always {@link AudioFormat#ENCODING_PCM_16BIT} and
  * {@link AudioFormat#CHANNEL_IN_MONO}. This class will automatically pick the right sample rate
- * for the device. Use {@link #getSampleRate()} to get the selected value.</p>
+ * for the device, and convert the audio to {@value #OUTPUT_SAMPLE_RATE} Hz with a
+ * {@link Resampler} if the device cannot record at that rate. Use {@link #getSampleRate()} to get
+ * the sample rate of the audio passed to the {@link Callback}.</p>
+ *
+ * <p>Audio is captured on one thread and the {@link VoiceRecorder.Callback} is called on another,
+ * so a slow callback never delays {@link AudioRecord#read(byte[], int, int)}. The two threads are
+ * connected by an {@link AudioFrameQueue}; when the callback falls behind, frames are dropped
+ * according to its {@link AudioFrameQueue.DropPolicy} and counted by
+ * {@link #getOverrunCount()}.</p>
+ *
+ * <p>The audio heard just before voice is detected is kept in a pre-roll buffer, and it is passed
+ * to {@link Callback#onVoice(AudioFrame)} right after {@link Callback#onVoiceStart()} so that the
+ * beginning of speech is not clipped. See {@link #setPreRollMillis(int)}.</p>
  */
 public class VoiceRecorder {
 
     private static final int[] SAMPLE_RATE_CANDIDATES = new int[]{16000, 11025, 22050, 44100};
 
+    /** The sample rate the Speech API is optimized for. */
+    private static final int OUTPUT_SAMPLE_RATE = 16000;
+
     private static final int CHANNEL = AudioFormat.CHANNEL_IN_MONO;
     private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
 
-    private static final int AMPLITUDE_THRESHOLD = 1500;
-    private static final int SPEECH_TIMEOUT_MILLIS = 2000;
-    private static final int MAX_SPEECH_LENGTH_MILLIS = 30 * 1000;
+    private static final int DEFAULT_MAX_SPEECH_LENGTH_MILLIS = 30 * 1000;
+
+    private static final int DEFAULT_PRE_ROLL_MILLIS = 500;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final long SEND_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
 
+    /**
+     * Receives voice events. All the methods are called on a dedicated sender thread.
+     */
     public static abstract class Callback {
 
         /**
@@ -52,10 +76,13 @@ public class VoiceRecorder {
         /**
          * Called when the recorder is hearing voice.
          *
-         * @param data The audio data in {@link AudioFormat#ENCODING_PCM_16BIT}.
-         * @param size The size of the actual data in {@code data}.
+         * <p>The {@code frame} is recycled after this method returns. Call
+         * {@link AudioFrame#retain()} to keep it longer.</p>
+         *
+         * @param frame The audio data in {@link AudioFormat#ENCODING_PCM_16BIT} at
+         *              {@link VoiceRecorder#getSampleRate()}.
          */
-        public void onVoice(byte[] data, int size) {
+        public void onVoice(AudioFrame frame) {
         }
 
         /**
@@ -67,22 +94,77 @@ public class VoiceRecorder {
 
     private final Callback mCallback;
 
+    private final VoiceActivityDetector mDetector;
+
+    private final int mQueueCapacity;
+
+    private final AudioFrameQueue.DropPolicy mDropPolicy;
+
+    private volatile int mMaxSpeechLengthMillis = DEFAULT_MAX_SPEECH_LENGTH_MILLIS;
+
+    private int mPreRollMillis = DEFAULT_PRE_ROLL_MILLIS;
+
+    /** The most recent audio that has not been sent as voice. */
+    private AudioHistory mPreRoll;
+
     private AudioRecord mAudioRecord;
 
     private Thread mThread;
 
-    private byte[] mBuffer;
+    private Thread mSendThread;
+
+    private AudioFramePool mFramePool;
+
+    private AudioFrameQueue mQueue;
 
     private final Object mLock = new Object();
 
     /** The timestamp of the last time that voice is heard. */
-    private long mLastVoiceHeardMillis = Long.MAX_VALUE;
+    private volatile long mLastVoiceHeardMillis = Long.MAX_VALUE;
 
     /** The timestamp when the current voice is started. */
     private long mVoiceStartedMillis;
 
+    /** Identifies the current utterance. Every queued frame is tagged with this. */
+    private volatile long mUtteranceId;
+
+    /** The latest utterance that has ended. */
+    private volatile long mEndedUtteranceId;
+
     public VoiceRecorder(@NonNull Callback callback) {
+        this(callback, new EnergyVoiceActivityDetector());
+    }
+
+    /**
+     * @param callback The callback.
+     * @param detector Decides which part of the audio is voice.
+     */
+    public VoiceRecorder(@NonNull Callback callback, @NonNull VoiceActivityDetector detector) {
+        this(callback, detector, DEFAULT_QUEUE_CAPACITY, AudioFrameQueue.DropPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param callback      The callback.
+     * @param queueCapacity The maximum number of frames waiting to be passed to the callback.
+     * @param dropPolicy    What to drop when the callback falls behind.
+     */
+    public VoiceRecorder(@NonNull Callback callback, int queueCapacity,
+            @NonNull AudioFrameQueue.DropPolicy dropPolicy) {
+        this(callback, new EnergyVoiceActivityDetector(), queueCapacity, dropPolicy);
+    }
+
+    /**
+     * @param callback      The callback.
+     * @param detector      Decides which part of the audio is voice.
+     * @param queueCapacity The maximum number of frames waiting to be passed to the callback.
+     * @param dropPolicy    What to drop when the callback falls behind.
+     */
+    public VoiceRecorder(@NonNull Callback callback, @NonNull VoiceActivityDetector detector,
+            int queueCapacity, @NonNull AudioFrameQueue.DropPolicy dropPolicy) {
         mCallback = callback;
+        mDetector = detector;
+        mQueueCapacity = queueCapacity;
+        mDropPolicy = dropPolicy;
     }
 
     /**
@@ -98,29 +180,61 @@ public class VoiceRecorder {
         if (mAudioRecord == null) {
             throw new RuntimeException("Cannot instantiate VoiceRecorder");
         }
+        mDetector.start(mAudioRecord.getSampleRate());
+        mPreRoll = new AudioHistory(
+                AudioHistory.capacityFor(mPreRollMillis, mAudioRecord.getSampleRate()));
         // Start recording.
         mAudioRecord.startRecording();
         // Start processing the captured audio.
-        mThread = new Thread(new ProcessVoice());
+        mQueue = new AudioFrameQueue(mQueueCapacity, mDropPolicy);
+        mSendThread = new Thread(new SendVoice(mQueue,
+                new Resampler(mAudioRecord.getSampleRate(), OUTPUT_SAMPLE_RATE)));
+        mSendThread.start();
+        mThread = new Thread(new ProcessVoice(mQueue, mSendThread));
         mThread.start();
     }
 
     /**
      * Stops recording audio.
+     *
+     * <p>This waits for the sender thread to finish, so the {@link Callback} is not called any
+     * more once this returns. If an utterance was ongoing, {@link Callback#onVoiceEnd()} is called
+     * before this returns.</p>
      */
     public void stop() {
+        final Thread sendThread;
         synchronized (mLock) {
             dismiss();
             if (mThread != null) {
                 mThread.interrupt();
                 mThread = null;
             }
+            sendThread = mSendThread;
+            if (mSendThread != null) {
+                mSendThread.interrupt();
+                mSendThread = null;
+            }
             if (mAudioRecord != null) {
                 mAudioRecord.stop();
                 mAudioRecord.release();
                 mAudioRecord = null;
             }
-            mBuffer = null;
+            mFramePool = null;
+            mPreRoll = null;
+        }
+        // The callback cannot wait for itself.
+        if (sendThread != null && sendThread != Thread.currentThread()) {
+            boolean interrupted = false;
+            while (sendThread.isAlive()) {
+                try {
+                    sendThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -130,16 +244,69 @@ public class VoiceRecorder {
     public void dismiss() {
         if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
             mLastVoiceHeardMillis = Long.MAX_VALUE;
-            mCallback.onVoiceEnd();
+            mEndedUtteranceId = mUtteranceId;
+            final Thread sendThread = mSendThread;
+            if (sendThread != null) {
+                LockSupport.unpark(sendThread);
+            }
+        }
+    }
+
+    /**
+     * Sets how much of the audio heard before voice is detected is passed to the callback at the
+     * start of each utterance. This takes effect from the next call to {@link #start()}.
+     *
+     * @param millis The length of the pre-roll in milliseconds, or 0 to disable it.
+     */
+    public void setPreRollMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid length: " + millis);
+        }
+        mPreRollMillis = millis;
+    }
+
+    /**
+     * Sets the maximum length of a single utterance. Longer speech is split into several
+     * utterances.
+     *
+     * @param millis The maximum length in milliseconds, or 0 for no limit.
+     */
+    public void setMaxSpeechLengthMillis(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid length: " + millis);
         }
+        mMaxSpeechLengthMillis = millis;
+    }
+
+    /**
+     * Retrieves the number of audio frames dropped because the callback could not keep up.
+     *
+     * @return The number of dropped frames in the current recording session.
+     */
+    public long getOverrunCount() {
+        final AudioFrameQueue queue = mQueue;
+        return queue == null ? 0 : queue.getOverrunCount();
     }
 
     /**
-     * Retrieves the sample rate currently used to record audio.
+     * Retrieves the sample rate of the audio passed to the {@link Callback}.
      *
-     * @return The sample rate of recorded audio.
+     * @return The sample rate of the audio, or 0 if it is not recording.
      */
     public int getSampleRate() {
+        if (mAudioRecord != null) {
+            return OUTPUT_SAMPLE_RATE;
+        }
+        return 0;
+    }
+
+    /**
+     * Retrieves the sample rate currently used to record audio. The audio is resampled if this is
+     * not the same as {@link #getSampleRate()}.
+     *
+     * @return The sample rate of recorded audio, or 0 if it is not recording.
+     */
+    public int getCaptureSampleRate() {
         if (mAudioRecord != null) {
             return mAudioRecord.getSampleRate();
         }
@@ -161,7 +328,11 @@ public class VoiceRecorder {
             final AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
                     sampleRate, CHANNEL, ENCODING, sizeInBytes);
             if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
-                mBuffer = new byte[sizeInBytes];
+                // Enough frames for a full queue and a full pre-roll buffer.
+                final int preRollFrames = (AudioHistory.capacityFor(mPreRollMillis, sampleRate)
+                        + sizeInBytes - 1) / sizeInBytes;
+                mFramePool = new AudioFramePool(sizeInBytes,
+                        mQueueCapacity + preRollFrames + 1);
                 return audioRecord;
             } else {
                 audioRecord.release();
@@ -171,11 +342,19 @@ public class VoiceRecorder {
     }
 
     /**
-     * Continuously processes the captured audio and notifies {@link #mCallback} of corresponding
-     * events.
+     * Continuously processes the captured audio and queues the voice for {@link SendVoice}.
      */
     private class ProcessVoice implements Runnable {
 
+        private final AudioFrameQueue mFrames;
+
+        private final Thread mSender;
+
+        ProcessVoice(AudioFrameQueue frames, Thread sender) {
+            mFrames = frames;
+            mSender = sender;
+        }
+
         @Override
         public void run() {
             while (true) {
@@ -183,45 +362,125 @@ public class VoiceRecorder {
                     if (Thread.currentThread().isInterrupted()) {
                         break;
                     }
-                    final int size = mAudioRecord.read(mBuffer, 0, mBuffer.length);
+                    // Read into a recycled frame; the queue takes it over if it is voice.
+                    final AudioFrame frame = mFramePool.acquire();
+                    final int size = mAudioRecord.read(frame.getData(), 0, frame.getCapacity());
+                    if (size <= 0) {
+                        frame.release();
+                        continue;
+                    }
+                    frame.setSize(size);
                     final long now = System.currentTimeMillis();
-                    if (isHearingVoice(mBuffer, size)) {
+                    final VoiceActivityDetector.Activity activity =
+                            mDetector.process(frame.getData(), size);
+                    if (activity == VoiceActivityDetector.Activity.SPEECH) {
                         if (mLastVoiceHeardMillis == Long.MAX_VALUE) {
                             mVoiceStartedMillis = now;
-                            mCallback.onVoiceStart();
+                            mUtteranceId++;
+                            flushPreRoll();
                         }
-                        mCallback.onVoice(mBuffer, size);
+                        send(frame, false);
                         mLastVoiceHeardMillis = now;
-                        if (now - mVoiceStartedMillis > MAX_SPEECH_LENGTH_MILLIS) {
+                        final int maxLength = mMaxSpeechLengthMillis;
+                        if (maxLength > 0 && now - mVoiceStartedMillis > maxLength) {
                             end();
                         }
                     } else if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
-                        mCallback.onVoice(mBuffer, size);
-                        if (now - mLastVoiceHeardMillis > SPEECH_TIMEOUT_MILLIS) {
+                        if (activity == VoiceActivityDetector.Activity.HANGOVER) {
+                            send(frame, true);
+                        } else {
+                            mPreRoll.write(frame.getData(), size);
+                            frame.release();
                             end();
                         }
+                    } else {
+                        mPreRoll.write(frame.getData(), size);
+                        frame.release();
                     }
                 }
             }
         }
 
+        /**
+         * @param silent Whether the detector heard no speech in the frame, as in the pre-roll and
+         *               the hangover.
+         */
+        private void send(AudioFrame frame, boolean silent) {
+            frame.setUtteranceId(mUtteranceId);
+            frame.setSilent(silent);
+            mFrames.offer(frame);
+            LockSupport.unpark(mSender);
+        }
+
+        /**
+         * Queues the pre-roll audio ahead of the first voice frame of a new utterance.
+         */
+        private void flushPreRoll() {
+            if (mPreRoll.flushTo(mFramePool, mFrames, mUtteranceId) > 0) {
+                LockSupport.unpark(mSender);
+            }
+        }
+
         private void end() {
             mLastVoiceHeardMillis = Long.MAX_VALUE;
-            mCallback.onVoiceEnd();
-        }
-
-        private boolean isHearingVoice(byte[] buffer, int size) {
-            for (int i = 0; i < size - 1; i += 2) {
-                // The buffer has LINEAR16 in little endian.
-                int s = buffer[i + 1];
-                if (s < 0) s *= -1;
-                s <<= 8;
-                s += Math.abs(buffer[i]);
-                if (s > AMPLITUDE_THRESHOLD) {
-                    return true;
+            mEndedUtteranceId = mUtteranceId;
+            LockSupport.unpark(mSender);
+        }
+
+    }
+
+    /**
+     * Takes the queued voice and notifies {@link #mCallback} of corresponding events.
+     */
+    private class SendVoice implements Runnable {
+
+        private final AudioFrameQueue mFrames;
+
+        private final Resampler mResampler;
+
+        private long mCurrentUtteranceId;
+
+        private boolean mActive;
+
+        SendVoice(AudioFrameQueue frames, Resampler resampler) {
+            mFrames = frames;
+            mResampler = resampler;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final AudioFrame frame = mFrames.poll();
+                if (frame != null) {
+                    if (frame.getUtteranceId() != mCurrentUtteranceId) {
+                        if (mActive) {
+                            mCallback.onVoiceEnd();
+                        }
+                        mCurrentUtteranceId = frame.getUtteranceId();
+                        mActive = true;
+                        mResampler.reset();
+                        mCallback.onVoiceStart();
+                    }
+                    // Frames still queued when their utterance ends or is dismissed are delivered
+                    // before onVoiceEnd(); only a frame that arrives after onVoiceEnd() is dropped.
+                    if (mActive) {
+                        final AudioFrame resampled = mResampler.resample(frame);
+                        mCallback.onVoice(resampled);
+                        resampled.release();
+                    }
+                    frame.release();
+                } else if (mActive && mEndedUtteranceId >= mCurrentUtteranceId) {
+                    mActive = false;
+                    mCallback.onVoiceEnd();
+                } else {
+                    LockSupport.parkNanos(this, SEND_IDLE_NANOS);
                 }
             }
-            return false;
+            mFrames.clear();
+            if (mActive) {
+                mActive = false;
+                mCallback.onVoiceEnd();
+            }
         }
 
     }
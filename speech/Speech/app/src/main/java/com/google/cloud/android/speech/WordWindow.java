@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.WordInfo;
+
+import java.util.Arrays;
+
+
+/**
+ * The part of the timeline of a continuous recognition whose words one recognition stream
+ * reports.
+ *
+ * <p>Adjacent streams hear the same audio around the seam between them. Each final word is taken
+ * from only one of them: the one whose window the start of the word falls into.</p>
+ *
+ * <p>Audio dropped from the stream, because the network could not keep up, is recorded with
+ * {@link #addGap(long, long)}, so that the offsets of the words after it still map to the right
+ * place on the timeline.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+class WordWindow {
+
+    /** Where the first audio of the stream is on the timeline. */
+    private final long mAudioStartMillis;
+
+    private long mStartMillis;
+
+    private long mEndMillis = Long.MAX_VALUE;
+
+    /** Where the last final word taken from the stream ends on the timeline. */
+    private long mLastWordEndMillis;
+
+    /** Where audio was dropped from the stream, in the order of the stream. */
+    private long[] mGapOffsetMillis = new long[0];
+
+    /** How much audio was dropped at each of {@link #mGapOffsetMillis}. */
+    private long[] mGapMillis = new long[0];
+
+    private int mGapCount;
+
+    /**
+     * @param audioStartMillis Where the first audio of the stream is on the timeline. The window
+     *                         starts there, too.
+     */
+    WordWindow(long audioStartMillis) {
+        mAudioStartMillis = audioStartMillis;
+        mStartMillis = audioStartMillis;
+    }
+
+    /**
+     * Splits the overlap between two adjacent streams in the middle, or after the last word
+     * already taken from the previous stream, whichever is later.
+     *
+     * @param previous      The window of the previous stream.
+     * @param next          The window of the next stream.
+     * @param seamMillis    Where the previous stream stopped receiving audio on the timeline.
+     * @param overlapMillis The duration of the audio that both streams receive.
+     * @return Where the previous window now ends and the next one starts.
+     */
+    static long cut(WordWindow previous, WordWindow next, long seamMillis, long overlapMillis) {
+        final long cutMillis = Math.max(seamMillis - overlapMillis / 2,
+                previous.mLastWordEndMillis);
+        previous.mEndMillis = cutMillis;
+        next.mStartMillis = cutMillis;
+        return cutMillis;
+    }
+
+    /**
+     * @return Where the window starts, relative to the first audio of the stream.
+     */
+    long getStreamStartMillis() {
+        return toStreamMillis(mStartMillis);
+    }
+
+    /**
+     * Records that audio was dropped from the stream.
+     *
+     * @param offsetMillis Where the dropped audio would have been in the stream, as the stream
+     *                     was before it was dropped.
+     * @param millis       The duration of the dropped audio.
+     */
+    void addGap(long offsetMillis, long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        // The gaps recorded after the dropped audio move up in the stream.
+        int index = mGapCount;
+        while (index > 0 && mGapOffsetMillis[index - 1] > offsetMillis) {
+            index--;
+            mGapOffsetMillis[index] = Math.max(offsetMillis, mGapOffsetMillis[index] - millis);
+        }
+        if (mGapCount == mGapMillis.length) {
+            final int length = Math.max(4, mGapCount * 2);
+            mGapOffsetMillis = Arrays.copyOf(mGapOffsetMillis, length);
+            mGapMillis = Arrays.copyOf(mGapMillis, length);
+        }
+        System.arraycopy(mGapOffsetMillis, index, mGapOffsetMillis, index + 1, mGapCount - index);
+        System.arraycopy(mGapMillis, index, mGapMillis, index + 1, mGapCount - index);
+        mGapOffsetMillis[index] = offsetMillis;
+        mGapMillis[index] = millis;
+        mGapCount++;
+    }
+
+    /**
+     * @param streamMillis An offset in the audio of the stream, as reported by the API.
+     * @return Where the audio at the offset is on the timeline.
+     */
+    long toTimelineMillis(long streamMillis) {
+        long millis = mAudioStartMillis + streamMillis;
+        for (int i = 0; i < mGapCount && mGapOffsetMillis[i] <= streamMillis; i++) {
+            millis += mGapMillis[i];
+        }
+        return millis;
+    }
+
+    /**
+     * @param timelineMillis A position on the timeline.
+     * @return Where the audio at the position is in the stream; the position of the next audio
+     * sent if the audio at the position was dropped.
+     */
+    long toStreamMillis(long timelineMillis) {
+        final long millis = timelineMillis - mAudioStartMillis;
+        long dropped = 0;
+        for (int i = 0; i < mGapCount; i++) {
+            final long gapStart = mGapOffsetMillis[i] + dropped;
+            if (millis < gapStart) {
+                break;
+            }
+            if (millis < gapStart + mGapMillis[i]) {
+                return mGapOffsetMillis[i];
+            }
+            dropped += mGapMillis[i];
+        }
+        return millis - dropped;
+    }
+
+    long getStartMillis() {
+        return mStartMillis;
+    }
+
+    long getEndMillis() {
+        return mEndMillis;
+    }
+
+    long getLastWordEndMillis() {
+        return mLastWordEndMillis;
+    }
+
+    /**
+     * Picks the words of a final result that fall into this window.
+     *
+     * @param alternative The final result of the stream.
+     * @return The transcript, or {@code null} if all of the words belong to other streams.
+     */
+    String stitch(SpeechRecognitionAlternative alternative) {
+        if (alternative.getWordsCount() == 0) {
+            return alternative.getTranscript();
+        }
+        final StringBuilder text = new StringBuilder();
+        boolean dropped = false;
+        for (WordInfo word : alternative.getWordsList()) {
+            final long start = toTimelineMillis(SpeechService.toMillis(word.getStartTime()));
+            if (start < mStartMillis || start >= mEndMillis) {
+                dropped = true;
+                continue;
+            }
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(word.getWord());
+            mLastWordEndMillis = Math.max(mLastWordEndMillis,
+                    toTimelineMillis(SpeechService.toMillis(word.getEndTime())));
+        }
+        if (!dropped) {
+            // Keep the transcript as formatted by the API.
+            return alternative.getTranscript();
+        }
+        return text.length() > 0 ? text.toString() : null;
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class AudioFrameQueueTest {
+
+    /** Frames are never reused, so that a frame that is released twice is caught. */
+    private final AudioFramePool mPool = new AudioFramePool(2, 0);
+
+    @Test
+    public void poll_firstInFirstOut() {
+        final AudioFrameQueue queue = new AudioFrameQueue(3, AudioFrameQueue.DropPolicy.DROP_NEWEST);
+        assertEquals(4, queue.getCapacity());
+        assertTrue(queue.isEmpty());
+        final AudioFrame[] frames = new AudioFrame[10];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame(i);
+            // Wraps around the slots several times.
+            assertTrue(queue.offer(frames[i]));
+            assertSame(frames[i], queue.poll());
+            frames[i].release();
+        }
+        assertNull(queue.poll());
+        for (int i = 0; i < 4; i++) {
+            frames[i] = frame(i);
+            queue.offer(frames[i]);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertSame(frames[i], queue.poll());
+            frames[i].release();
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getOverrunCount());
+    }
+
+    @Test
+    public void offer_dropNewest() {
+        final AudioFrameQueue queue = new AudioFrameQueue(2, AudioFrameQueue.DropPolicy.DROP_NEWEST);
+        final AudioFrame first = frame(0);
+        final AudioFrame second = frame(1);
+        final AudioFrame third = frame(2);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertFalse(queue.offer(third));
+        assertEquals(1, queue.getOverrunCount());
+        assertReleased(third);
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void offer_dropOldest() {
+        final AudioFrameQueue queue = new AudioFrameQueue(2, AudioFrameQueue.DropPolicy.DROP_OLDEST);
+        final AudioFrame first = frame(0);
+        final AudioFrame second = frame(1);
+        final AudioFrame third = frame(2);
+        final AudioFrame fourth = frame(3);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertTrue(queue.offer(third));
+        assertTrue(queue.offer(fourth));
+        assertEquals(2, queue.getOverrunCount());
+        assertReleased(first);
+        assertReleased(second);
+        assertSame(third, queue.poll());
+        third.release();
+        queue.clear();
+        assertReleased(fourth);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void offerAndPoll_concurrently() throws Exception {
+        for (AudioFrameQueue.DropPolicy policy : AudioFrameQueue.DropPolicy.values()) {
+            final AudioFrameQueue queue = new AudioFrameQueue(8, policy);
+            final int count = 200000;
+            final AudioFrame[] frames = new AudioFrame[count];
+            for (int i = 0; i < count; i++) {
+                frames[i] = frame(i);
+            }
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            final long[] delivered = new long[1];
+            final Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long last = -1;
+                        while (true) {
+                            final AudioFrame frame = queue.poll();
+                            if (frame == null) {
+                                if (Thread.interrupted()) {
+                                    break;
+                                }
+                                Thread.yield();
+                                continue;
+                            }
+                            if (frame.getUtteranceId() <= last) {
+                                throw new AssertionError("Out of order: " + frame.getUtteranceId()
+                                        + " after " + last);
+                            }
+                            last = frame.getUtteranceId();
+                            frame.release();
+                            delivered[0]++;
+                        }
+                        // The producer is done; take what is left.
+                        AudioFrame frame;
+                        while ((frame = queue.poll()) != null) {
+                            frame.release();
+                            delivered[0]++;
+                        }
+                    } catch (Throwable t) {
+                        error.set(t);
+                    }
+                }
+            });
+            consumer.start();
+            for (AudioFrame frame : frames) {
+                queue.offer(frame);
+            }
+            consumer.interrupt();
+            consumer.join();
+            if (error.get() != null) {
+                throw new AssertionError(policy.toString(), error.get());
+            }
+            assertEquals(policy.toString(), count, delivered[0] + queue.getOverrunCount());
+            // Every frame was either delivered and released by the consumer, or released by the
+            // queue when it was dropped, exactly once.
+            for (AudioFrame frame : frames) {
+                assertReleased(frame);
+            }
+        }
+    }
+
+    private AudioFrame frame(long id) {
+        final AudioFrame frame = mPool.acquire();
+        frame.setUtteranceId(id);
+        return frame;
+    }
+
+    private static void assertReleased(AudioFrame frame) {
+        try {
+            frame.retain();
+        } catch (IllegalStateException e) {
+            // A frame released twice would have thrown when it was released the second time.
+            return;
+        }
+        fail("The frame was not released.");
+    }
+
+}
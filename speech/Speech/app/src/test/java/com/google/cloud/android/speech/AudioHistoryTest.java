@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+
+public class AudioHistoryTest {
+
+    @Test
+    public void capacityFor() {
+        assertEquals(32000, AudioHistory.capacityFor(1000, 16000));
+        assertEquals(8820, AudioHistory.capacityFor(100, 44100));
+        // Whole samples only.
+        assertEquals(10, new AudioHistory(11).getCapacity());
+    }
+
+    @Test
+    public void write_overwritesTheOldestAudio() {
+        final AudioHistory history = new AudioHistory(10);
+        history.write(bytes(0, 4), 4);
+        assertEquals(4, history.size());
+        assertArrayEquals(bytes(0, 4), read(history, 0, 10));
+        history.write(bytes(4, 4), 4);
+        history.write(bytes(8, 4), 4);
+        assertEquals(10, history.size());
+        // Wrapped around the end of the buffer.
+        assertArrayEquals(bytes(2, 10), read(history, 0, 10));
+        history.write(bytes(12, 6), 6);
+        assertArrayEquals(bytes(8, 10), read(history, 0, 10));
+    }
+
+    @Test
+    public void write_keepsTheTailOfOversizedAudio() {
+        final AudioHistory history = new AudioHistory(10);
+        history.write(bytes(0, 3), 3);
+        history.write(bytes(3, 14), 14);
+        assertEquals(10, history.size());
+        assertArrayEquals(bytes(7, 10), read(history, 0, 10));
+        // Only the size counts, not the length of the array.
+        final byte[] data = Arrays.copyOf(bytes(17, 2), 100);
+        history.write(data, 2);
+        assertArrayEquals(bytes(9, 10), read(history, 0, 10));
+    }
+
+    @Test
+    public void read_fromAPosition() {
+        final AudioHistory history = new AudioHistory(10);
+        history.write(bytes(0, 16), 16);
+        assertArrayEquals(bytes(10, 4), read(history, 4, 4));
+        assertArrayEquals(bytes(14, 2), read(history, 8, 4));
+        assertEquals(0, history.read(10, new byte[4], 4));
+        history.clear();
+        assertEquals(0, history.size());
+        assertEquals(0, history.read(0, new byte[4], 4));
+    }
+
+    @Test
+    public void flushTo_queuesThePreRoll() {
+        final AudioHistory history = new AudioHistory(10);
+        history.write(bytes(0, 14), 14);
+        final AudioFramePool pool = new AudioFramePool(4, 0);
+        final AudioFrameQueue queue = new AudioFrameQueue(8,
+                AudioFrameQueue.DropPolicy.DROP_NEWEST);
+        assertEquals(3, history.flushTo(pool, queue, 7));
+        assertEquals(0, history.size());
+        // The latest audio, oldest first, in frames of the pool.
+        final byte[] expected = bytes(4, 10);
+        int position = 0;
+        AudioFrame frame;
+        while ((frame = queue.poll()) != null) {
+            assertEquals(7, frame.getUtteranceId());
+            assertTrue(frame.isSilent());
+            assertArrayEquals(Arrays.copyOfRange(expected, position, position + frame.getSize()),
+                    Arrays.copyOf(frame.getData(), frame.getSize()));
+            position += frame.getSize();
+            frame.release();
+        }
+        assertEquals(expected.length, position);
+        assertEquals(0, history.flushTo(pool, queue, 8));
+        assertTrue(queue.isEmpty());
+    }
+
+    private static byte[] read(AudioHistory history, int position, int length) {
+        final byte[] out = new byte[length];
+        return Arrays.copyOf(out, history.read(position, out, length));
+    }
+
+    /** Consecutive byte values, so that the order of the audio is visible. */
+    private static byte[] bytes(int first, int count) {
+        final byte[] data = new byte[count];
+        for (int i = 0; i < count; i++) {
+            data[i] = (byte) (first + i);
+        }
+        return data;
+    }
+
+}
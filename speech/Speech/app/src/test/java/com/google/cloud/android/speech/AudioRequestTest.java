@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.grpc.Drainable;
+
+
+public class AudioRequestTest {
+
+    /** Keeps one idle frame, so that a recycled frame is handed out again. */
+    private final AudioFramePool mPool = new AudioFramePool(8, 1);
+
+    @Test
+    public void acquire_recyclesReleasedFrames() {
+        final AudioFrame first = mPool.acquire();
+        final AudioFrame second = mPool.acquire();
+        assertNotSame(first, second);
+        assertEquals(2, mPool.getAllocatedCount());
+        first.release();
+        second.release();
+        // Only one is kept.
+        assertSame(first, mPool.acquire());
+        mPool.acquire();
+        assertEquals(3, mPool.getAllocatedCount());
+    }
+
+    @Test
+    public void stream_releasesTheFrameOnceRead() throws IOException {
+        final AudioFrame frame = frame(1, 2, 3);
+        final InputStream stream = AudioRequest.STREAMING_RECOGNIZE.streamRequest(
+                AudioRequest.audio(frame));
+        frame.release();
+        // The request still holds the frame.
+        assertNotSame(frame, mPool.acquire());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[2];
+        int read;
+        while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        assertSame(frame, mPool.acquire());
+        assertEquals(ByteString.copyFrom(new byte[]{1, 2, 3}), parse(out).getAudioContent());
+    }
+
+    @Test
+    public void stream_releasesTheFrameOnceDrained() throws IOException {
+        final AudioFrame frame = frame(4, 5);
+        final InputStream stream = AudioRequest.STREAMING_RECOGNIZE.streamRequest(
+                AudioRequest.audio(frame));
+        frame.release();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((Drainable) stream).drainTo(out);
+        assertSame(frame, mPool.acquire());
+        assertEquals(ByteString.copyFrom(new byte[]{4, 5}), parse(out).getAudioContent());
+    }
+
+    @Test
+    public void stream_releasesTheFrameOnceClosed() throws IOException {
+        final AudioFrame frame = frame(6);
+        final InputStream stream = AudioRequest.STREAMING_RECOGNIZE.streamRequest(
+                AudioRequest.audio(frame));
+        frame.release();
+        stream.close();
+        assertSame(frame, mPool.acquire());
+        // Closing it again does not release the frame twice, now that it is in use again.
+        stream.close();
+        assertNotSame(frame, mPool.acquire());
+    }
+
+    @Test
+    public void stream_config() throws IOException {
+        final InputStream stream = AudioRequest.STREAMING_RECOGNIZE.streamRequest(
+                AudioRequest.config(StreamingRecognitionConfig.newBuilder()
+                        .setInterimResults(true)
+                        .build()));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((Drainable) stream).drainTo(out);
+        assertTrue(parse(out).getStreamingConfig().getInterimResults());
+    }
+
+    private AudioFrame frame(int... samples) {
+        final AudioFrame frame = mPool.acquire();
+        for (int i = 0; i < samples.length; i++) {
+            frame.getData()[i] = (byte) samples[i];
+        }
+        frame.setSize(samples.length);
+        return frame;
+    }
+
+    private static StreamingRecognizeRequest parse(ByteArrayOutputStream out)
+            throws IOException {
+        return StreamingRecognizeRequest.parseFrom(out.toByteArray());
+    }
+
+}
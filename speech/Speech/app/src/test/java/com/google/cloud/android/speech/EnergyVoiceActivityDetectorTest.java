@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.android.speech.VoiceActivityDetector.Activity;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+
+public class EnergyVoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private final Random mRandom = new Random(1);
+
+    @Test
+    public void process_speechAtTheStart() {
+        final EnergyVoiceActivityDetector detector = new EnergyVoiceActivityDetector();
+        detector.start(SAMPLE_RATE);
+        // The user is already talking when the recording starts.
+        assertEquals(Activity.SPEECH, detector.process(tone(3000, 20), size(20)));
+        assertEquals(Activity.SPEECH, detector.process(tone(3000, 20), size(20)));
+    }
+
+    @Test
+    public void process_onsetAfterNoise() {
+        final EnergyVoiceActivityDetector detector = new EnergyVoiceActivityDetector();
+        detector.start(SAMPLE_RATE);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Activity.SILENCE, detector.process(noise(200, 20), size(20)));
+        }
+        assertEquals(Activity.SPEECH, detector.process(tone(3000, 20), size(20)));
+    }
+
+    @Test
+    public void process_hangover() {
+        final EnergyVoiceActivityDetector detector = new EnergyVoiceActivityDetector(200);
+        detector.start(SAMPLE_RATE);
+        for (int i = 0; i < 50; i++) {
+            detector.process(noise(100, 20), size(20));
+        }
+        assertEquals(Activity.SPEECH, detector.process(tone(3000, 20), size(20)));
+        // 200 ms of hangover in frames of 20 ms.
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Activity.HANGOVER, detector.process(noise(100, 20), size(20)));
+        }
+        assertEquals(Activity.SILENCE, detector.process(noise(100, 20), size(20)));
+        // Speech during the hangover continues the utterance.
+        assertEquals(Activity.SPEECH, detector.process(tone(3000, 20), size(20)));
+        assertEquals(Activity.HANGOVER, detector.process(noise(100, 20), size(20)));
+        assertEquals(Activity.SPEECH, detector.process(tone(3000, 20), size(20)));
+    }
+
+    @Test
+    public void process_noiseFloorFollowsTheNoise() {
+        final double quiet = noiseFloorAfter(100, 3000, 20);
+        assertTrue("" + quiet, quiet > 80 * 80 && quiet < 120 * 120);
+        // A louder environment raises the floor over a few seconds.
+        final EnergyVoiceActivityDetector detector = new EnergyVoiceActivityDetector();
+        detector.start(SAMPLE_RATE);
+        feed(detector, 100, 3000, 20);
+        feed(detector, 300, 10000, 20);
+        final double loud = detector.getNoiseEnergy();
+        assertTrue("" + loud, loud > 250 * 250 && loud < 350 * 350);
+        assertEquals(Activity.SILENCE, detector.process(noise(300, 20), size(20)));
+    }
+
+    @Test
+    public void process_noiseFloorDoesNotDependOnTheFrameSize() {
+        final EnergyVoiceActivityDetector small = new EnergyVoiceActivityDetector();
+        small.start(SAMPLE_RATE);
+        feed(small, 100, 1000, 10);
+        feed(small, 300, 1000, 10);
+        final EnergyVoiceActivityDetector large = new EnergyVoiceActivityDetector();
+        large.start(SAMPLE_RATE);
+        feed(large, 100, 1000, 100);
+        feed(large, 300, 1000, 100);
+        // Halfway up after a second, in both cases.
+        assertEquals(1, small.getNoiseEnergy() / large.getNoiseEnergy(), 0.1);
+        assertTrue(small.getNoiseEnergy() > 150 * 150);
+        assertTrue(small.getNoiseEnergy() < 250 * 250);
+    }
+
+    private double noiseFloorAfter(int rms, int millis, int frameMillis) {
+        final EnergyVoiceActivityDetector detector = new EnergyVoiceActivityDetector();
+        detector.start(SAMPLE_RATE);
+        feed(detector, rms, millis, frameMillis);
+        return detector.getNoiseEnergy();
+    }
+
+    private void feed(EnergyVoiceActivityDetector detector, int rms, int millis,
+            int frameMillis) {
+        for (int t = 0; t < millis; t += frameMillis) {
+            detector.process(noise(rms, frameMillis), size(frameMillis));
+        }
+    }
+
+    private static int size(int millis) {
+        return SAMPLE_RATE * millis / 1000 * 2;
+    }
+
+    /** A 200 Hz tone, which crosses zero rarely like voiced speech. */
+    private static byte[] tone(int amplitude, int millis) {
+        final byte[] data = new byte[size(millis)];
+        for (int i = 0; i < data.length / 2; i++) {
+            put(data, i, amplitude * Math.sin(2 * Math.PI * 200 * i / SAMPLE_RATE));
+        }
+        return data;
+    }
+
+    private byte[] noise(int rms, int millis) {
+        final byte[] data = new byte[size(millis)];
+        for (int i = 0; i < data.length / 2; i++) {
+            put(data, i, mRandom.nextGaussian() * rms);
+        }
+        return data;
+    }
+
+    private static void put(byte[] data, int index, double value) {
+        final int sample = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        data[index * 2] = (byte) sample;
+        data[index * 2 + 1] = (byte) (sample >> 8);
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jflac.FLACDecoder;
+import org.jflac.PCMProcessor;
+import org.jflac.metadata.StreamInfo;
+import org.jflac.util.ByteData;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+
+public class FlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void encode_roundTrip() throws IOException {
+        final byte[] pcm = readWav("/audio.wav");
+        for (int chunk : new int[]{640, 1280, 3200, 34}) {
+            final byte[] flac = encode(pcm, chunk, SAMPLE_RATE);
+            assertArrayEquals("chunk size " + chunk, pcm, decode(flac));
+        }
+    }
+
+    @Test
+    public void encode_compressesSpeech() throws IOException {
+        final byte[] pcm = readWav("/audio.wav");
+        final byte[] flac = encode(pcm, 1280, SAMPLE_RATE);
+        assertTrue("ratio " + (double) flac.length / pcm.length, flac.length < pcm.length * 3 / 4);
+    }
+
+    @Test
+    public void encode_silence() throws IOException {
+        final byte[] pcm = new byte[3200];
+        final byte[] flac = encode(pcm, 640, SAMPLE_RATE);
+        assertArrayEquals(pcm, decode(flac));
+        assertTrue(flac.length < 200);
+    }
+
+    @Test
+    public void encode_nonStandardSampleRate() throws IOException {
+        final byte[] pcm = readWav("/audio.wav");
+        final byte[] flac = encode(pcm, 882, 11025);
+        assertArrayEquals(pcm, decode(flac));
+    }
+
+    @Test
+    public void encode_frame() throws IOException {
+        final byte[] pcm = readWav("/audio.wav");
+        final AudioFramePool pool = new AudioFramePool(640);
+        final FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+        final ByteArrayOutputStream flac = new ByteArrayOutputStream();
+        for (int offset = 0; offset < pcm.length; offset += 640) {
+            final AudioFrame frame = pool.acquire();
+            final int size = Math.min(640, pcm.length - offset);
+            System.arraycopy(pcm, offset, frame.getData(), 0, size);
+            frame.setSize(size);
+            final AudioFrame encoded = encoder.encode(frame);
+            frame.release();
+            encoded.asByteString().writeTo(flac);
+            encoded.release();
+        }
+        assertArrayEquals(pcm, decode(flac.toByteArray()));
+    }
+
+    private static byte[] encode(byte[] pcm, int chunk, int sampleRate) {
+        final FlacEncoder encoder = new FlacEncoder(sampleRate);
+        final byte[] out = new byte[FlacEncoder.getMaxEncodedSize(chunk)];
+        final ByteArrayOutputStream flac = new ByteArrayOutputStream();
+        for (int offset = 0; offset < pcm.length; offset += chunk) {
+            final int size = Math.min(chunk, pcm.length - offset);
+            final byte[] in = Arrays.copyOfRange(pcm, offset, offset + size);
+            flac.write(out, 0, encoder.encode(in, size, out, 0));
+        }
+        return flac.toByteArray();
+    }
+
+    private static byte[] decode(byte[] flac) throws IOException {
+        final ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        final FLACDecoder decoder = new FLACDecoder(new ByteArrayInputStream(flac));
+        decoder.addPCMProcessor(new PCMProcessor() {
+            @Override
+            public void processStreamInfo(StreamInfo streamInfo) {
+            }
+
+            @Override
+            public void processPCM(ByteData data) {
+                pcm.write(data.getData(), 0, data.getLen());
+            }
+        });
+        decoder.decode();
+        return pcm.toByteArray();
+    }
+
+    /**
+     * Reads the samples of a 16-bit mono WAV resource.
+     */
+    static byte[] readWav(String name) throws IOException {
+        final InputStream stream = FlacEncoderTest.class.getResourceAsStream(name);
+        try {
+            final DataInputStream in = new DataInputStream(stream);
+            final byte[] id = new byte[4];
+            in.readFully(id);
+            assertEquals("RIFF", new String(id, "US-ASCII"));
+            in.skipBytes(8);
+            while (true) {
+                in.readFully(id);
+                final int size = Integer.reverseBytes(in.readInt());
+                if ("data".equals(new String(id, "US-ASCII"))) {
+                    final byte[] data = new byte[size];
+                    in.readFully(data);
+                    return data;
+                }
+                in.skipBytes(size);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+}
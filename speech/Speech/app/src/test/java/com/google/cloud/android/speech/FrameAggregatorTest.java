@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class FrameAggregatorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    /** 10 ms of audio. */
+    private static final int FRAME_BYTES = 320;
+
+    private final List<Integer> mChunkSizes = new ArrayList<>();
+
+    private final ByteArrayOutputStream mAudio = new ByteArrayOutputStream();
+
+    private final List<AudioFrame> mChunks = new ArrayList<>();
+
+    private final AudioFramePool mPool = new AudioFramePool(FRAME_BYTES * 20);
+
+    private FrameAggregator mAggregator;
+
+    private byte mNextByte;
+
+    @Before
+    public void setUp() {
+        mAggregator = new FrameAggregator(SAMPLE_RATE, 100, new FrameAggregator.Sink() {
+            @Override
+            public void onChunk(AudioFrame chunk) {
+                mChunks.add(chunk);
+                mChunkSizes.add(chunk.getSize());
+                mAudio.write(chunk.getData(), 0, chunk.getSize());
+            }
+        });
+    }
+
+    @Test
+    public void add_joinsSmallFrames() {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 25; i++) {
+            expected.write(addFrame(FRAME_BYTES), 0, FRAME_BYTES);
+        }
+        assertEquals(2, mChunkSizes.size());
+        assertEquals(3200, (int) mChunkSizes.get(0));
+        assertEquals(3200, (int) mChunkSizes.get(1));
+        mAggregator.flush();
+        assertEquals(3, mChunkSizes.size());
+        assertEquals(1600, (int) mChunkSizes.get(2));
+        assertArrayEquals(expected.toByteArray(), mAudio.toByteArray());
+    }
+
+    @Test
+    public void add_splitsAcrossChunks() {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            expected.write(addFrame(1400), 0, 1400);
+        }
+        mAggregator.flush();
+        assertEquals(2, mChunkSizes.size());
+        assertEquals(3200, (int) mChunkSizes.get(0));
+        assertEquals(1000, (int) mChunkSizes.get(1));
+        assertArrayEquals(expected.toByteArray(), mAudio.toByteArray());
+    }
+
+    @Test
+    public void add_passesLargeFramesThrough() {
+        final AudioFrame frame = mPool.acquire();
+        frame.setSize(FRAME_BYTES * 12);
+        mAggregator.add(frame);
+        assertEquals(1, mChunks.size());
+        assertSame(frame, mChunks.get(0));
+        frame.release();
+    }
+
+    @Test
+    public void onSent_adaptsToBackpressure() {
+        assertEquals(100, mAggregator.getChunkMillis());
+        mAggregator.onSent(false);
+        assertEquals(200, mAggregator.getChunkMillis());
+        for (int i = 0; i < 3; i++) {
+            mAggregator.onSent(false);
+        }
+        assertEquals(FrameAggregator.MAX_CHUNK_MILLIS, mAggregator.getChunkMillis());
+        for (int i = 0; i < 100; i++) {
+            mAggregator.onSent(true);
+        }
+        assertEquals(100, mAggregator.getChunkMillis());
+    }
+
+    @Test
+    public void onRoundTrip_limitsChunksPerRoundTrip() {
+        mAggregator.onRoundTrip(1600);
+        mAggregator.onSent(true);
+        assertEquals(200, mAggregator.getChunkMillis());
+        for (int i = 0; i < 19; i++) {
+            addFrame(FRAME_BYTES);
+        }
+        assertEquals(0, mChunkSizes.size());
+        addFrame(FRAME_BYTES);
+        assertEquals(1, mChunkSizes.size());
+        assertEquals(6400, (int) mChunkSizes.get(0));
+    }
+
+    private byte[] addFrame(int size) {
+        final AudioFrame frame = mPool.acquire();
+        final byte[] data = frame.getData();
+        for (int i = 0; i < size; i++) {
+            data[i] = mNextByte++;
+        }
+        frame.setSize(size);
+        mAggregator.add(frame);
+        final byte[] copy = new byte[size];
+        System.arraycopy(data, 0, copy, 0, size);
+        frame.release();
+        return copy;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class HistogramTest {
+
+    @Test
+    public void bucketOf_isMonotonic() {
+        int previous = 0;
+        for (long value = 0; value < 100000; value++) {
+            final int bucket = Histogram.bucketOf(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(value <= Histogram.upperBoundOf(bucket));
+            previous = bucket;
+        }
+        assertTrue(Histogram.upperBoundOf(Histogram.bucketOf(Long.MAX_VALUE)) == Long.MAX_VALUE);
+    }
+
+    @Test
+    public void getPercentile() {
+        final Histogram histogram = new Histogram("test");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void record_parent() {
+        final Histogram parent = new Histogram("parent");
+        final Histogram first = new Histogram("first", parent);
+        final Histogram second = new Histogram("second", parent);
+        first.record(10);
+        second.record(20);
+        second.record(-1);
+        assertEquals(1, first.getCount());
+        assertEquals(2, second.getCount());
+        assertEquals(3, parent.getCount());
+        assertEquals(20, parent.getMax());
+        assertEquals(0, parent.getPercentile(0));
+    }
+
+    @Test
+    public void record_concurrently() throws InterruptedException {
+        final Histogram histogram = new Histogram("test");
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        histogram.record(j % 100);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99, histogram.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.125);
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+
+public class OutboundAudioQueueTest {
+
+    private static final int FRAME_BYTES = 100;
+
+    private final AudioFramePool mPool = new AudioFramePool(FRAME_BYTES, 0);
+
+    @Test
+    public void makeRoom_dropsSilenceFirst() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(FRAME_BYTES * 3);
+        final AudioFrame speech1 = frame(5000, false);
+        final AudioFrame silence = frame(5000, true);
+        final AudioFrame speech2 = frame(-5000, false);
+        queue.add(speech1);
+        queue.add(silence);
+        queue.add(speech2);
+        assertFalse(queue.hasRoom(FRAME_BYTES));
+        assertEquals(1, queue.makeRoom(FRAME_BYTES));
+        assertTrue(queue.hasRoom(FRAME_BYTES));
+        assertSame(speech1, queue.poll());
+        assertSame(speech2, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.getBytes());
+    }
+
+    @Test
+    public void makeRoom_dropsOldestWithoutSilence() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(FRAME_BYTES * 2);
+        final AudioFrame first = frame(5000, false);
+        final AudioFrame second = frame(5000, false);
+        queue.add(first);
+        queue.add(second);
+        assertEquals(2, queue.makeRoom(FRAME_BYTES * 2));
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBytes());
+    }
+
+    @Test
+    public void add_retainsFrames() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(FRAME_BYTES * 2);
+        final AudioFrame frame = frame(5000, false);
+        queue.add(frame);
+        frame.release();
+        // The queue still holds a reference.
+        final AudioFrame queued = queue.poll();
+        assertSame(frame, queued);
+        assertEquals(5000, (short) ((queued.getData()[0] & 0xff) | (queued.getData()[1] << 8)));
+        queued.release();
+        queue.add(frame(0, true));
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void makeRoom_dropsLikeAScanFromTheOldest() {
+        final int capacity = 40;
+        final OutboundAudioQueue queue = new OutboundAudioQueue(FRAME_BYTES * capacity);
+        // The frames the queue should hold, oldest first.
+        final ArrayList<AudioFrame> expected = new ArrayList<>();
+        final Random random = new Random(1);
+        final ArrayList<Integer> offsets = new ArrayList<>();
+        final OutboundAudioQueue.DropListener listener = new OutboundAudioQueue.DropListener() {
+            @Override
+            public void onDropped(int offset, int size) {
+                assertEquals(FRAME_BYTES, size);
+                offsets.add(offset);
+            }
+        };
+        for (int i = 0; i < 5000; i++) {
+            // Speech between long pauses, so that silence is dropped from the middle many times.
+            final AudioFrame frame = frame(i, random.nextInt(8) != 0);
+            int dropped = 0;
+            final ArrayList<Integer> expectedOffsets = new ArrayList<>();
+            while (expected.size() >= capacity) {
+                int victim = 0;
+                for (int j = 0; j < expected.size(); j++) {
+                    if (expected.get(j).isSilent()) {
+                        victim = j;
+                        break;
+                    }
+                }
+                expected.remove(victim);
+                expectedOffsets.add(FRAME_BYTES * victim);
+                dropped++;
+            }
+            offsets.clear();
+            assertEquals(dropped, queue.makeRoom(FRAME_BYTES, listener));
+            assertEquals(expectedOffsets, offsets);
+            queue.add(frame);
+            frame.release();
+            expected.add(frame);
+            if (random.nextInt(5) == 0) {
+                // Sent now and then.
+                final AudioFrame sent = queue.poll();
+                assertSame(expected.remove(0), sent);
+                sent.release();
+            }
+            assertEquals(FRAME_BYTES * expected.size(), queue.getBytes());
+        }
+        for (AudioFrame frame : expected) {
+            final AudioFrame sent = queue.poll();
+            assertSame(frame, sent);
+            sent.release();
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    private AudioFrame frame(int amplitude, boolean silent) {
+        final AudioFrame frame = mPool.acquire();
+        final byte[] data = frame.getData();
+        for (int i = 0; i < FRAME_BYTES; i += 2) {
+            data[i] = (byte) amplitude;
+            data[i + 1] = (byte) (amplitude >> 8);
+        }
+        frame.setSize(FRAME_BYTES);
+        frame.setSilent(silent);
+        return frame;
+    }
+
+}
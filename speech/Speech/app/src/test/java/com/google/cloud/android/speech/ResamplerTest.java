@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+
+public class ResamplerTest {
+
+    @Test
+    public void resample_sameRate_isBitExact() {
+        final byte[] pcm = new byte[3200];
+        new Random(1).nextBytes(pcm);
+        final Resampler resampler = new Resampler(16000, 16000);
+        final byte[] out = new byte[resampler.getMaxOutputSize(pcm.length)];
+        assertEquals(pcm.length, resampler.resample(pcm, pcm.length, out, 0));
+        assertArrayEquals(pcm, out);
+
+        final AudioFrame frame = new AudioFramePool(pcm.length).acquire();
+        assertSame(frame, resampler.resample(frame));
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void resample_keepsTheSpeechBand() {
+        for (int rate : new int[]{11025, 22050, 44100, 48000}) {
+            final byte[] out = resampleAll(new Resampler(rate, 16000), tone(rate, 1000, 1), 882);
+            assertEquals(16000, out.length / 2, 2);
+            // Skip the filter delay at the start.
+            final double amplitude = rms(out, 1000, 15000) * Math.sqrt(2);
+            assertEquals("at " + rate + " Hz", 10000, amplitude, 300);
+            final double crossingsPerSecond = zeroCrossings(out, 1000, 15000) * 16000.0 / 14000;
+            assertEquals("at " + rate + " Hz", 2000, crossingsPerSecond, 20);
+        }
+    }
+
+    @Test
+    public void resample_removesAliases() {
+        // 10 kHz would alias to 6 kHz at 16 kHz.
+        final byte[] out = resampleAll(new Resampler(44100, 16000), tone(44100, 10000, 1), 882);
+        assertTrue(rms(out, 1000, 15000) < 30);
+    }
+
+    @Test
+    public void resample_doesNotDependOnChunks() {
+        final byte[] pcm = tone(44100, 440, 0.5);
+        assertArrayEquals(resampleAll(new Resampler(44100, 16000), pcm, pcm.length),
+                resampleAll(new Resampler(44100, 16000), pcm, 6));
+        assertArrayEquals(resampleAll(new Resampler(11025, 16000), pcm, 1764),
+                resampleAll(new Resampler(11025, 16000), pcm, 98));
+    }
+
+    private static byte[] resampleAll(Resampler resampler, byte[] pcm, int chunk) {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] in = new byte[chunk];
+        final byte[] out = new byte[resampler.getMaxOutputSize(chunk)];
+        for (int offset = 0; offset < pcm.length; offset += chunk) {
+            final int size = Math.min(chunk, pcm.length - offset);
+            System.arraycopy(pcm, offset, in, 0, size);
+            result.write(out, 0, resampler.resample(in, size, out, 0));
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] tone(int rate, double frequency, double seconds) {
+        final byte[] pcm = new byte[(int) (rate * seconds) * 2];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            final int sample = (int) Math.round(
+                    10000 * Math.sin(2 * Math.PI * frequency * i / rate));
+            pcm[i * 2] = (byte) sample;
+            pcm[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    private static short sample(byte[] pcm, int i) {
+        return (short) ((pcm[i * 2] & 0xff) | (pcm[i * 2 + 1] << 8));
+    }
+
+    private static double rms(byte[] pcm, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (double) sample(pcm, i) * sample(pcm, i);
+        }
+        return Math.sqrt(sum / (to - from));
+    }
+
+    private static int zeroCrossings(byte[] pcm, int from, int to) {
+        int count = 0;
+        for (int i = from + 1; i < to; i++) {
+            if ((sample(pcm, i - 1) < 0) != (sample(pcm, i) < 0)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
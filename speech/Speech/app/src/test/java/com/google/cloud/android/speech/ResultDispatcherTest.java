@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+
+public class ResultDispatcherTest {
+
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+    private final List<String> mResults = new ArrayList<>();
+
+    private ResultDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new ResultDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mTasks.add(command);
+            }
+        });
+        mDispatcher.addListener(new SpeechService.Listener() {
+            @Override
+            public void onSpeechRecognized(String text) {
+                mResults.add("F:" + text);
+            }
+
+            @Override
+            public void onSpeechUpdated(TranscriptDelta delta) {
+                mResults.add("I:" + delta);
+            }
+        });
+    }
+
+    @Test
+    public void dispatch_coalescesInterimResults() {
+        mDispatcher.dispatchInterim(new TranscriptDelta(0, "a", 0));
+        mDispatcher.dispatchInterim(new TranscriptDelta(1, " b", 0));
+        mDispatcher.dispatchInterim(new TranscriptDelta(3, " c", 0));
+        runTasks();
+        assertEquals(Arrays.asList("I:0:a b c"), mResults);
+        mResults.clear();
+        mDispatcher.dispatchInterim(new TranscriptDelta(4, "x", 0));
+        mDispatcher.dispatchInterim(new TranscriptDelta(2, "y", 0));
+        runTasks();
+        assertEquals(Arrays.asList("I:2:y"), mResults);
+    }
+
+    @Test
+    public void dispatch_deliversAllFinalResultsInOrder() {
+        mDispatcher.dispatchFinal("one");
+        mDispatcher.dispatchInterim(new TranscriptDelta(0, "t", 0));
+        mDispatcher.dispatchFinal("two");
+        mDispatcher.dispatchFinal("three");
+        mDispatcher.dispatchInterim(new TranscriptDelta(0, "f", 0));
+        runTasks();
+        assertEquals(Arrays.asList("F:one", "F:two", "F:three", "I:0:f"), mResults);
+    }
+
+    @Test
+    public void dispatch_schedulesOnce() {
+        for (int i = 0; i < 100; i++) {
+            if (i % 10 == 0) {
+                mDispatcher.dispatchFinal("x" + i);
+            } else {
+                mDispatcher.dispatchInterim(new TranscriptDelta(0, "x" + i, 0));
+            }
+        }
+        assertEquals(1, mTasks.size());
+        runTasks();
+        mDispatcher.dispatchInterim(new TranscriptDelta(0, "y", 0));
+        assertEquals(1, mTasks.size());
+    }
+
+    @Test
+    public void dispatch_neverDeliversAnInterimResultBeforeAnEarlierFinal() {
+        mDispatcher.addListener(new SpeechService.Listener() {
+            @Override
+            public void onSpeechRecognized(String text) {
+                if (text.equals("one")) {
+                    // Results arrive while the drain is halfway through delivering.
+                    mDispatcher.dispatchFinal("F");
+                    mDispatcher.dispatchInterim(new TranscriptDelta(0, "D", 0));
+                }
+            }
+
+            @Override
+            public void onSpeechUpdated(TranscriptDelta delta) {
+            }
+        });
+        mDispatcher.dispatchFinal("one");
+        mDispatcher.dispatchFinal("two");
+        assertEquals(1, mTasks.size());
+        mTasks.poll().run();
+        assertEquals(Arrays.asList("F:one", "F:two"), mResults);
+        // The late results are delivered by the next drain, the final one first.
+        assertEquals(1, mTasks.size());
+        runTasks();
+        assertEquals(Arrays.asList("F:one", "F:two", "F:F", "I:0:D"), mResults);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+}
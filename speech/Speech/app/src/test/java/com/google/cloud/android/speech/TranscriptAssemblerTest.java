@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.WordInfo;
+import com.google.protobuf.Duration;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+public class TranscriptAssemblerTest {
+
+    private final TranscriptAssembler mAssembler = new TranscriptAssembler();
+
+    @Test
+    public void update_copiesOnlyTheChange() {
+        TranscriptDelta delta = mAssembler.update(results("hello", 0.9f, " wor", 0.01f), 0);
+        assertEquals("0:hello wor", delta.toString());
+        assertEquals(5, delta.getStableLength());
+        delta = mAssembler.update(results("hello", 0.9f, " world", 0.01f), 0);
+        assertEquals("9:ld", delta.toString());
+        delta = mAssembler.update(results("hello", 0.9f, " word", 0.01f), 0);
+        assertEquals("9:d", delta.toString());
+        assertEquals(10, delta.getLength());
+        assertNull(mAssembler.update(results("hello", 0.9f, " word", 0.01f), 0));
+    }
+
+    @Test
+    public void update_stability() {
+        TranscriptDelta delta = mAssembler.update(results("hello", 0.9f, " word", 0.01f), 0);
+        assertEquals(5, delta.getStableLength());
+        delta = mAssembler.update(results("hello", 0.9f, " word", 0.9f), 0);
+        assertEquals("10:", delta.toString());
+        assertEquals(10, delta.getStableLength());
+        // Nothing after an unstable result is stable.
+        delta = mAssembler.update(results("hi", 0.01f, " word", 0.9f), 0);
+        assertEquals(0, delta.getStableLength());
+    }
+
+    @Test
+    public void update_removesResults() {
+        mAssembler.update(results("hello", 0.9f, " world", 0.01f), 0);
+        assertEquals("5:", mAssembler.update(results("hello", 0.9f), 0).toString());
+        mAssembler.reset();
+        assertEquals("0:hello", mAssembler.update(results("hello", 0.9f), 0).toString());
+    }
+
+    @Test
+    public void update_leavesOutWordsBeforeTheWindow() {
+        final StreamingRecognitionResult result = StreamingRecognitionResult.newBuilder()
+                .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                        .setTranscript("one two three")
+                        .addWords(word("one", 100))
+                        .addWords(word("two", 600))
+                        .addWords(word("three", 1200)))
+                .build();
+        assertEquals("0:two three",
+                mAssembler.update(Arrays.asList(result), 500).toString());
+        mAssembler.reset();
+        assertEquals("0:one two three",
+                mAssembler.update(Arrays.asList(result), 50).toString());
+    }
+
+    @Test
+    public void update_deltasRebuildTheTranscript() {
+        final Random random = new Random(1);
+        final String[] words = {" a", " bc", " def", " gh", " i"};
+        final StringBuilder shown = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            final List<StreamingRecognitionResult> results = new ArrayList<>();
+            final StringBuilder expected = new StringBuilder();
+            final int count = random.nextInt(4);
+            for (int j = 0; j < count; j++) {
+                final StringBuilder segment = new StringBuilder();
+                for (int k = random.nextInt(4); k >= 0; k--) {
+                    segment.append(words[random.nextInt(words.length)]);
+                }
+                results.add(result(segment.toString(), random.nextFloat()));
+                expected.append(segment);
+            }
+            final TranscriptDelta delta = mAssembler.update(results, 0);
+            if (delta != null) {
+                shown.replace(delta.getStart(), shown.length(), delta.getText());
+            }
+            assertEquals(expected.toString(), shown.toString());
+        }
+    }
+
+    private static List<StreamingRecognitionResult> results(String text, float stability) {
+        return Arrays.asList(result(text, stability));
+    }
+
+    private static List<StreamingRecognitionResult> results(String text1, float stability1,
+            String text2, float stability2) {
+        return Arrays.asList(result(text1, stability1), result(text2, stability2));
+    }
+
+    private static StreamingRecognitionResult result(String text, float stability) {
+        return StreamingRecognitionResult.newBuilder()
+                .addAlternatives(SpeechRecognitionAlternative.newBuilder().setTranscript(text))
+                .setStability(stability)
+                .build();
+    }
+
+    private static WordInfo word(String word, long startMillis) {
+        return WordInfo.newBuilder()
+                .setWord(word)
+                .setStartTime(Duration.newBuilder()
+                        .setSeconds(startMillis / 1000)
+                        .setNanos((int) (startMillis % 1000 * 1000000)))
+                .build();
+    }
+
+}
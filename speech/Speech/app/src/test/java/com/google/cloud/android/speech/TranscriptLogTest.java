@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+public class TranscriptLogTest {
+
+    private static final int COUNT = TranscriptLog.PAGE_SIZE * 10 + 5;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void get_readsPagesLazily() throws IOException {
+        final TranscriptLog log = new TranscriptLog(mFolder.getRoot(), "test");
+        for (int i = 0; i < COUNT; i++) {
+            log.append(text(i));
+        }
+        assertEquals(COUNT, log.size());
+        // Newest first, as MainActivity shows them.
+        for (int i = COUNT - 1; i >= 0; i--) {
+            assertEquals(text(i), log.get(i));
+            assertTrue(log.getCachedPageCount() <= TranscriptLog.MAX_CACHED_PAGES);
+        }
+        log.close();
+    }
+
+    @Test
+    public void append_updatesCachedPage() throws IOException {
+        final TranscriptLog log = new TranscriptLog(mFolder.getRoot(), "test");
+        log.append(text(0));
+        assertEquals(text(0), log.get(0));
+        log.append(text(1));
+        assertEquals(text(1), log.get(1));
+        log.close();
+    }
+
+    @Test
+    public void getCachedPage_holdsTheNewestPages() throws IOException {
+        final TranscriptLog log = new TranscriptLog(mFolder.getRoot(), "test");
+        for (int i = 0; i < COUNT; i++) {
+            log.append(text(i));
+        }
+        // The pages written last are in memory without reading them.
+        final int last = (COUNT - 1) / TranscriptLog.PAGE_SIZE;
+        assertEquals(text(COUNT - 1),
+                log.getCachedPage(last)[(COUNT - 1) % TranscriptLog.PAGE_SIZE]);
+        assertNull(log.getCachedPage(last)[COUNT % TranscriptLog.PAGE_SIZE]);
+        assertEquals(text(COUNT - 6), log.getCachedPage(last - 1)[TranscriptLog.PAGE_SIZE - 1]);
+        assertNull(log.getCachedPage(0));
+        log.get(0);
+        assertEquals(text(1), log.getCachedPage(0)[1]);
+        log.close();
+        assertNull(log.getCachedPage(0));
+    }
+
+    @Test
+    public void open_keepsHistory() throws IOException {
+        TranscriptLog log = new TranscriptLog(mFolder.getRoot(), "test");
+        for (int i = 0; i < COUNT; i++) {
+            log.append(text(i));
+        }
+        log.close();
+        log = new TranscriptLog(mFolder.getRoot(), "test");
+        assertEquals(COUNT, log.size());
+        assertEquals(text(0), log.get(0));
+        assertEquals(text(COUNT - 1), log.get(COUNT - 1));
+        log.append("more");
+        assertEquals("more", log.get(COUNT));
+        log.close();
+    }
+
+    @Test
+    public void open_discardsTornRecord() throws IOException {
+        TranscriptLog log = new TranscriptLog(mFolder.getRoot(), "test");
+        for (int i = 0; i < TranscriptLog.PAGE_SIZE + 1; i++) {
+            log.append(text(i));
+        }
+        log.close();
+        // Cut the last record in half, as if the process died while writing it.
+        final RandomAccessFile file = new RandomAccessFile(
+                new File(mFolder.getRoot(), "test.log"), "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+        log = new TranscriptLog(mFolder.getRoot(), "test");
+        assertEquals(TranscriptLog.PAGE_SIZE, log.size());
+        log.append("after");
+        assertEquals("after", log.get(TranscriptLog.PAGE_SIZE));
+        assertEquals(text(TranscriptLog.PAGE_SIZE - 1), log.get(TranscriptLog.PAGE_SIZE - 1));
+        log.close();
+    }
+
+    private static String text(int i) {
+        return "transcript \u00e9 " + i;
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.WordInfo;
+import com.google.protobuf.Duration;
+
+import org.junit.Test;
+
+
+public class WordWindowTest {
+
+    @Test
+    public void stitch_keepsTheTranscriptOfAWholeResult() {
+        final WordWindow window = new WordWindow(0);
+        assertEquals("One, two.", window.stitch(alternative("One, two.",
+                word("one", 100, 400), word("two", 500, 900))));
+        assertEquals(900, window.getLastWordEndMillis());
+        // Without word time offsets, there is nothing to pick from.
+        assertEquals("three", window.stitch(alternative("three")));
+    }
+
+    @Test
+    public void stitch_picksTheWordsOfEachWindow() {
+        final WordWindow previous = new WordWindow(0);
+        final WordWindow next = new WordWindow(8000);
+        // The next stream received the audio from 8 s; the previous one stopped at 10 s.
+        assertEquals(9000, WordWindow.cut(previous, next, 10000, 2000));
+        assertEquals(9000, previous.getEndMillis());
+        assertEquals(9000, next.getStartMillis());
+        assertEquals(1000, next.getStreamStartMillis());
+        assertEquals("six seven", previous.stitch(alternative("six seven eight",
+                word("six", 8200, 8500), word("seven", 8600, 8950), word("eight", 9100, 9400))));
+        // The offsets of the next stream count from the start of its audio.
+        assertEquals("eight nine", next.stitch(alternative("seven eight nine",
+                word("seven", 600, 950), word("eight", 1100, 1400), word("nine", 1500, 1800))));
+        assertEquals(9800, next.getLastWordEndMillis());
+    }
+
+    @Test
+    public void stitch_returnsNullIfAllOfTheWordsBelongToOtherStreams() {
+        final WordWindow previous = new WordWindow(0);
+        final WordWindow next = new WordWindow(8000);
+        WordWindow.cut(previous, next, 10000, 2000);
+        assertNull(next.stitch(alternative("seven", word("seven", 600, 950))));
+        assertNull(previous.stitch(alternative("nine", word("nine", 9500, 9800))));
+    }
+
+    @Test
+    public void cut_doesNotSplitAWordAlreadyTaken() {
+        final WordWindow previous = new WordWindow(0);
+        previous.stitch(alternative("a long word", word("a", 8000, 8200),
+                word("long", 8300, 8700), word("word", 8800, 9400)));
+        final WordWindow next = new WordWindow(8000);
+        // "word" was taken from the previous stream, so the next one starts after it.
+        assertEquals(9400, WordWindow.cut(previous, next, 10000, 2000));
+        assertEquals("more", next.stitch(alternative("word more",
+                word("word", 800, 1400), word("more", 1500, 1800))));
+    }
+
+    @Test
+    public void addGap_mapsTheAudioAfterTheGap() {
+        final WordWindow window = new WordWindow(1000);
+        // 300 ms dropped after 500 ms of the stream, then 200 ms after another 500 ms.
+        window.addGap(500, 300);
+        window.addGap(1000, 200);
+        assertEquals(1400, window.toTimelineMillis(400));
+        assertEquals(1800, window.toTimelineMillis(500));
+        assertEquals(2500, window.toTimelineMillis(1000));
+        assertEquals(400, window.toStreamMillis(1400));
+        assertEquals(500, window.toStreamMillis(1600));
+        assertEquals(500, window.toStreamMillis(1800));
+        assertEquals(1000, window.toStreamMillis(2500));
+        assertEquals("after", window.stitch(alternative("after", word("after", 1000, 1200))));
+        assertEquals(2700, window.getLastWordEndMillis());
+    }
+
+    @Test
+    public void addGap_beforeAnEarlierGap() {
+        final WordWindow window = new WordWindow(0);
+        // Silence is dropped from the middle of the queue, and then the speech before it.
+        window.addGap(600, 100);
+        window.addGap(500, 100);
+        window.addGap(500, 50);
+        assertEquals(450, window.toTimelineMillis(450));
+        assertEquals(750, window.toTimelineMillis(500));
+        assertEquals(500, window.toStreamMillis(700));
+        assertEquals(550, window.toStreamMillis(800));
+    }
+
+    private static SpeechRecognitionAlternative alternative(String transcript, WordInfo... words) {
+        final SpeechRecognitionAlternative.Builder builder = SpeechRecognitionAlternative
+                .newBuilder()
+                .setTranscript(transcript);
+        for (WordInfo word : words) {
+            builder.addWords(word);
+        }
+        return builder.build();
+    }
+
+    private static WordInfo word(String word, long startMillis, long endMillis) {
+        return WordInfo.newBuilder()
+                .setWord(word)
+                .setStartTime(duration(startMillis))
+                .setEndTime(duration(endMillis))
+                .build();
+    }
+
+    private static Duration duration(long millis) {
+        return Duration.newBuilder()
+                .setSeconds(millis / 1000)
+                .setNanos((int) (millis % 1000 * 1000000))
+                .build();
+    }
+
+}
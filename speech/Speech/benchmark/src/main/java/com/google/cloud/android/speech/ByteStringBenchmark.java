@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares the ways of turning a buffer of audio into a {@link ByteString}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteStringBenchmark {
+
+    @Param({"640", "1280", "3200"})
+    public int chunkSize;
+
+    private byte[] mBuffer;
+
+    private AudioFrame mFrame;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] pcm = PcmFixture.load(0);
+        mBuffer = new byte[chunkSize];
+        System.arraycopy(pcm, pcm.length / 2, mBuffer, 0, chunkSize);
+        mFrame = new AudioFramePool(chunkSize).acquire();
+        System.arraycopy(mBuffer, 0, mFrame.getData(), 0, chunkSize);
+        mFrame.setSize(chunkSize);
+    }
+
+    /** What the app did before frames were pooled. */
+    @Benchmark
+    public ByteString copyFrom() {
+        return ByteString.copyFrom(mBuffer, 0, chunkSize);
+    }
+
+    @Benchmark
+    public ByteString unsafeWrapNewBuffer() {
+        return UnsafeByteOperations.unsafeWrap(ByteBuffer.wrap(mBuffer, 0, chunkSize));
+    }
+
+    /** What the app does now. */
+    @Benchmark
+    public ByteString audioFrame() {
+        return mFrame.asByteString();
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the CPU cost of encoding one second of recorded audio to FLAC, as the streams of
+ * {@link SpeechService} do when they send FLAC. The score is the time spent per second of audio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlacEncoderBenchmark {
+
+    /** The length of the audio in each request. */
+    @Param({"20", "100"})
+    public int chunkMillis;
+
+    private byte[] mPcm;
+
+    private byte[] mChunk;
+
+    private byte[] mOut;
+
+    private int mChunkSize;
+
+    private int mOffset;
+
+    private FlacEncoder mEncoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPcm = PcmFixture.load(0);
+        mChunkSize = PcmFixture.SAMPLE_RATE * chunkMillis / 1000 * 2;
+        mChunk = new byte[mChunkSize];
+        mOut = new byte[FlacEncoder.getMaxEncodedSize(mChunkSize)];
+        mEncoder = new FlacEncoder(PcmFixture.SAMPLE_RATE);
+    }
+
+    @Benchmark
+    public int oneSecond() {
+        int written = 0;
+        for (int i = 0; i < 1000 / chunkMillis; i++) {
+            if (mOffset + mChunkSize > mPcm.length) {
+                mOffset = 0;
+            }
+            System.arraycopy(mPcm, mOffset, mChunk, 0, mChunkSize);
+            mOffset += mChunkSize;
+            written += mEncoder.encode(mChunk, mChunkSize, mOut, 0);
+        }
+        return written;
+    }
+
+}
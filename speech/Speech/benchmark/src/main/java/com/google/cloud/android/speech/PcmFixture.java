@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+
+/**
+ * The speech recording of the app, as 16 kHz, 16-bit, mono PCM.
+ */
+final class PcmFixture {
+
+    static final int SAMPLE_RATE = 16000;
+
+    private PcmFixture() {
+    }
+
+    /**
+     * Loads the recording.
+     *
+     * @param noise The standard deviation of the Gaussian noise to add, or 0 for the clean audio.
+     * @return The PCM data in little endian.
+     */
+    static byte[] load(double noise) throws IOException {
+        final byte[] pcm = read();
+        if (noise > 0) {
+            // Seeded, so that every run measures the same audio.
+            final Random random = new Random(42);
+            for (int i = 0; i + 1 < pcm.length; i += 2) {
+                final int sample = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+                final int noisy = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                        sample + (int) (random.nextGaussian() * noise)));
+                pcm[i] = (byte) noisy;
+                pcm[i + 1] = (byte) (noisy >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    private static byte[] read() throws IOException {
+        final InputStream in = PcmFixture.class.getResourceAsStream("/audio.raw");
+        if (in == null) {
+            throw new IOException("audio.raw is not on the classpath");
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Drainable;
+
+
+/**
+ * Measures building a {@code streamingRecognize} audio request and serializing it the way gRPC
+ * does, into the transport's buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    @Param({"640", "1280", "3200"})
+    public int chunkSize;
+
+    private byte[] mBuffer;
+
+    private AudioFramePool mPool;
+
+    /** Stands in for the buffer of the transport. */
+    private final OutputStream mSink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] pcm = PcmFixture.load(0);
+        mBuffer = new byte[chunkSize];
+        System.arraycopy(pcm, pcm.length / 2, mBuffer, 0, chunkSize);
+        mPool = new AudioFramePool(chunkSize);
+    }
+
+    /** What the app did before frames were pooled. */
+    @Benchmark
+    public int copyingRequest() throws IOException {
+        final StreamingRecognizeRequest request = StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(ByteString.copyFrom(mBuffer, 0, chunkSize))
+                .build();
+        return drain(SpeechGrpc.METHOD_STREAMING_RECOGNIZE.getRequestMarshaller()
+                .stream(request));
+    }
+
+    /** What the app does now. */
+    @Benchmark
+    public int pooledFrameRequest() throws IOException {
+        final AudioFrame frame = mPool.acquire();
+        System.arraycopy(mBuffer, 0, frame.getData(), 0, chunkSize);
+        frame.setSize(chunkSize);
+        final AudioRequest request = AudioRequest.audio(frame);
+        frame.release();
+        return drain(AudioRequest.STREAMING_RECOGNIZE.getRequestMarshaller().stream(request));
+    }
+
+    private int drain(InputStream stream) throws IOException {
+        try {
+            return ((Drainable) stream).drainTo(mSink);
+        } finally {
+            stream.close();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the CPU cost of converting one second of recorded audio to 16 kHz, as
+ * {@link VoiceRecorder} does on devices that cannot record at that rate. The score is the time
+ * spent per second of audio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+
+    /** The capture rates that VoiceRecorder falls back to. 16 kHz is passed through. */
+    @Param({"16000", "11025", "22050", "44100"})
+    public int inputRate;
+
+    /** The length of a buffer from AudioRecord. */
+    @Param({"20"})
+    public int chunkMillis;
+
+    private byte[] mPcm;
+
+    private byte[] mChunk;
+
+    private byte[] mOut;
+
+    private int mChunkSize;
+
+    private int mOffset;
+
+    private Resampler mResampler;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The content does not change the cost, so the 16 kHz fixture stands in for any rate.
+        mPcm = PcmFixture.load(0);
+        mChunkSize = inputRate * chunkMillis / 1000 * 2;
+        mChunk = new byte[mChunkSize];
+        mResampler = new Resampler(inputRate, 16000);
+        mOut = new byte[mResampler.getMaxOutputSize(mChunkSize)];
+    }
+
+    @Benchmark
+    public int oneSecond() {
+        int written = 0;
+        for (int i = 0; i < 1000 / chunkMillis; i++) {
+            if (mOffset + mChunkSize > mPcm.length) {
+                mOffset = 0;
+            }
+            System.arraycopy(mPcm, mOffset, mChunk, 0, mChunkSize);
+            mOffset += mChunkSize;
+            written += mResampler.resample(mChunk, mChunkSize, mOut, 0);
+        }
+        return written;
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the voice activity detection that runs on every buffer read by {@link VoiceRecorder}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoiceActivityBenchmark {
+
+    /** The threshold of the amplitude scan that VoiceRecorder used before the detector. */
+    private static final int AMPLITUDE_THRESHOLD = 1500;
+
+    /** The standard deviation of the background noise. */
+    @Param({"0", "1200"})
+    public double noise;
+
+    /** The size of a buffer from AudioRecord: 20 ms and 40 ms at 16 kHz. */
+    @Param({"640", "1280"})
+    public int chunkSize;
+
+    private byte[] mPcm;
+
+    private byte[] mChunk;
+
+    private int mOffset;
+
+    private EnergyVoiceActivityDetector mDetector;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPcm = PcmFixture.load(noise);
+        mChunk = new byte[chunkSize];
+        mDetector = new EnergyVoiceActivityDetector();
+        mDetector.start(PcmFixture.SAMPLE_RATE);
+    }
+
+    @Benchmark
+    public VoiceActivityDetector.Activity energyDetector() {
+        return mDetector.process(nextChunk(), chunkSize);
+    }
+
+    @Benchmark
+    public boolean amplitudeThreshold() {
+        final byte[] buffer = nextChunk();
+        for (int i = 0; i < chunkSize - 1; i += 2) {
+            // The buffer has LINEAR16 in little endian.
+            int s = buffer[i + 1];
+            if (s < 0) s *= -1;
+            s <<= 8;
+            s += Math.abs(buffer[i]);
+            if (s > AMPLITUDE_THRESHOLD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks through the recording like AudioRecord would, wrapping around at the end.
+     */
+    private byte[] nextChunk() {
+        if (mOffset + chunkSize > mPcm.length) {
+            mOffset = 0;
+        }
+        System.arraycopy(mPcm, mOffset, mChunk, 0, chunkSize);
+        mOffset += chunkSize;
+        return mChunk;
+    }
+
+}
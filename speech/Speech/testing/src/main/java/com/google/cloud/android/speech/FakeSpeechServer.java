@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.RecognizeRequest;
+import com.google.cloud.speech.v1.RecognizeResponse;
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.SpeechRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * A fake of the Speech API that runs in the same process.
+ *
+ * <p>Every stream gets the same scripted results: an interim result for every
+ * {@link #setInterimIntervalBytes(int) few bytes} of audio, and a final result when the client
+ * half-closes the stream. Each response is delayed by the {@link #setLatencyMillis(long)
+ * latency} plus a random {@link #setJitterMillis(long) jitter}, and a fraction of the streams
+ * {@link #setErrorRate(double, Status) fail}. The settings can be changed at any time and apply to
+ * the streams started after that.</p>
+ */
+public class FakeSpeechServer extends SpeechGrpc.SpeechImplBase {
+
+    private final String mName;
+
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final Random mRandom = new Random();
+
+    private final AtomicLong mStreams = new AtomicLong();
+
+    private final AtomicLong mAudioBytes = new AtomicLong();
+
+    private volatile List<String> mInterimResults = Arrays.asList("how old", "how old is the");
+
+    private volatile String mFinalResult = "how old is the Brooklyn Bridge";
+
+    private volatile int mInterimIntervalBytes = 16000;
+
+    private volatile long mLatencyMillis;
+
+    private volatile long mJitterMillis;
+
+    private volatile double mErrorRate;
+
+    private volatile Status mError = Status.UNAVAILABLE;
+
+    private Server mServer;
+
+    /**
+     * @param name The name of the in-process server.
+     */
+    public FakeSpeechServer(String name) {
+        mName = name;
+    }
+
+    public void start() throws IOException {
+        mServer = InProcessServerBuilder.forName(mName).addService(this).build().start();
+    }
+
+    public void stop() {
+        if (mServer != null) {
+            mServer.shutdownNow();
+            mServer = null;
+        }
+        mScheduler.shutdownNow();
+    }
+
+    /**
+     * @return A new channel to this server.
+     */
+    public ManagedChannel newChannel() {
+        return InProcessChannelBuilder.forName(mName).build();
+    }
+
+    /**
+     * @param interimResults The interim results of every stream, in order.
+     * @param finalResult    The final result of every stream.
+     */
+    public void setScript(List<String> interimResults, String finalResult) {
+        mInterimResults = new ArrayList<>(interimResults);
+        mFinalResult = finalResult;
+    }
+
+    /**
+     * @param bytes The amount of audio between interim results.
+     */
+    public void setInterimIntervalBytes(int bytes) {
+        mInterimIntervalBytes = bytes;
+    }
+
+    /**
+     * @param millis The minimum delay of every response.
+     */
+    public void setLatencyMillis(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * @param millis The maximum random delay added to the latency.
+     */
+    public void setJitterMillis(long millis) {
+        mJitterMillis = millis;
+    }
+
+    /**
+     * @param rate  The fraction of streams that fail, between 0 and 1.
+     * @param error The status the failing streams end with.
+     */
+    public void setErrorRate(double rate, Status error) {
+        mErrorRate = rate;
+        mError = error;
+    }
+
+    /**
+     * @return The number of streams started.
+     */
+    public long getStreams() {
+        return mStreams.get();
+    }
+
+    /**
+     * @return The total amount of audio received.
+     */
+    public long getAudioBytes() {
+        return mAudioBytes.get();
+    }
+
+    @Override
+    public void recognize(RecognizeRequest request,
+            final StreamObserver<RecognizeResponse> responseObserver) {
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                responseObserver.onNext(RecognizeResponse.newBuilder()
+                        .addResults(SpeechRecognitionResult.newBuilder()
+                                .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                                        .setTranscript(mFinalResult)
+                                        .setConfidence(0.9f)))
+                        .build());
+                responseObserver.onCompleted();
+            }
+        }, nextDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public StreamObserver<StreamingRecognizeRequest> streamingRecognize(
+            StreamObserver<StreamingRecognizeResponse> responseObserver) {
+        mStreams.incrementAndGet();
+        return new FakeStream((ServerCallStreamObserver<StreamingRecognizeResponse>)
+                responseObserver);
+    }
+
+    private long nextDelayMillis() {
+        final long jitter = mJitterMillis;
+        synchronized (mRandom) {
+            return mLatencyMillis + (jitter > 0 ? (long) (mRandom.nextDouble() * jitter) : 0);
+        }
+    }
+
+    private boolean nextFails() {
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < mErrorRate;
+        }
+    }
+
+    private static StreamingRecognizeResponse result(String transcript, boolean isFinal) {
+        return StreamingRecognizeResponse.newBuilder()
+                .addResults(StreamingRecognitionResult.newBuilder()
+                        .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                                .setTranscript(transcript)
+                                .setConfidence(isFinal ? 0.9f : 0f))
+                        .setIsFinal(isFinal)
+                        .setStability(isFinal ? 0f : 0.8f))
+                .build();
+    }
+
+    private class FakeStream implements StreamObserver<StreamingRecognizeRequest> {
+
+        private final ServerCallStreamObserver<StreamingRecognizeResponse> mResponses;
+
+        private final List<String> mInterimResults = FakeSpeechServer.this.mInterimResults;
+
+        private final int mInterimIntervalBytes = FakeSpeechServer.this.mInterimIntervalBytes;
+
+        private final boolean mFails = nextFails();
+
+        private boolean mConfigured;
+
+        private boolean mClosed;
+
+        private long mBytes;
+
+        private int mNextInterim;
+
+        /** Responses are never sent before this, so that they keep their order despite jitter. */
+        private long mLastSendNanos;
+
+        FakeStream(ServerCallStreamObserver<StreamingRecognizeResponse> responses) {
+            mResponses = responses;
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeRequest request) {
+            if (mClosed) {
+                return;
+            }
+            if (!mConfigured) {
+                if (request.getStreamingRequestCase()
+                        != StreamingRecognizeRequest.StreamingRequestCase.STREAMING_CONFIG) {
+                    close(Status.INVALID_ARGUMENT
+                            .withDescription("The first request must have a config."));
+                    return;
+                }
+                mConfigured = true;
+                if (mFails) {
+                    close(mError);
+                }
+                return;
+            }
+            final int size = request.getAudioContent().size();
+            mBytes += size;
+            mAudioBytes.addAndGet(size);
+            while (mNextInterim < mInterimResults.size()
+                    && mBytes >= (long) (mNextInterim + 1) * mInterimIntervalBytes) {
+                send(result(mInterimResults.get(mNextInterim++), false), false);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            mClosed = true;
+        }
+
+        @Override
+        public void onCompleted() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            send(result(mFinalResult, true), true);
+        }
+
+        private void close(Status status) {
+            mClosed = true;
+            final Status error = status;
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mResponses.isCancelled()) {
+                        mResponses.onError(error.asException());
+                    }
+                }
+            });
+        }
+
+        private void send(final StreamingRecognizeResponse response, final boolean last) {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (mResponses.isCancelled()) {
+                        return;
+                    }
+                    mResponses.onNext(response);
+                    if (last) {
+                        mResponses.onCompleted();
+                    }
+                }
+            });
+        }
+
+        private void schedule(Runnable task) {
+            final long now = System.nanoTime();
+            final long at = Math.max(now + TimeUnit.MILLISECONDS.toNanos(nextDelayMillis()),
+                    mLastSendNanos);
+            mLastSendNanos = at;
+            // The scheduler has a single thread, and runs tasks due at the same time in order.
+            mScheduler.schedule(task, at - now, TimeUnit.NANOSECONDS);
+        }
+
+    }
+
+}
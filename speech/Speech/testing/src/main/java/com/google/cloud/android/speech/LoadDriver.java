@@ -0,0 +1,333 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+
+
+/**
+ * Sends simulated microphone streams to the Speech API concurrently, and measures the latency of
+ * the results.
+ *
+ * <p>Each stream is sent by the same {@link AudioStream} and {@link FrameAggregator} that
+ * {@link SpeechService} uses, with audio in pooled {@link AudioFrame}s, optionally compressed by
+ * {@link FlacEncoder}, and paced like {@link VoiceRecorder} reads it. The service itself needs the
+ * Android framework, so it is not used directly.</p>
+ */
+public class LoadDriver {
+
+    static final int SAMPLE_RATE = 16000;
+
+    /** The most audio each stream holds while gRPC is not ready to send it. */
+    private static final int MAX_QUEUED_MILLIS = 10 * 1000;
+
+    private final Channel mChannel;
+
+    private final byte[] mPcm;
+
+    private final int mChunkMillis;
+
+    private final int mChunkBytes;
+
+    private final long mChunkNanos;
+
+    private final boolean mFlac;
+
+    private final Histogram mFirstInterimMillis = new Histogram("first_interim_ms");
+
+    private final Histogram mFinalMillis = new Histogram("final_after_audio_end_ms");
+
+    private final Histogram mStreamMillis = new Histogram("stream_ms");
+
+    private final AtomicLong mErrors = new AtomicLong();
+
+    private final SpeechStats mStats = new SpeechStats();
+
+    /**
+     * @param channel     The channel to the Speech API.
+     * @param pcm         The audio of each utterance, in LINEAR16 at {@link #SAMPLE_RATE}.
+     * @param chunkMillis The length of audio in each request.
+     * @param speed       How much faster than real time the audio is sent.
+     * @param flac        {@code true} to send the audio in FLAC.
+     */
+    public LoadDriver(Channel channel, byte[] pcm, int chunkMillis, double speed, boolean flac) {
+        mChannel = channel;
+        mPcm = pcm;
+        mChunkMillis = chunkMillis;
+        mChunkBytes = SAMPLE_RATE * 2 * chunkMillis / 1000;
+        mChunkNanos = (long) (TimeUnit.MILLISECONDS.toNanos(chunkMillis) / speed);
+        mFlac = flac;
+    }
+
+    /**
+     * Runs simulated microphones concurrently until each has spoken a number of utterances.
+     *
+     * @param streams    The number of concurrent microphones.
+     * @param utterances The number of utterances for each microphone, one stream each.
+     */
+    public void run(int streams, final int utterances) throws InterruptedException {
+        final Thread[] threads = new Thread[streams];
+        for (int i = 0; i < streams; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final AudioFramePool pool = new AudioFramePool(mChunkBytes);
+                    try {
+                        for (int j = 0; j < utterances; j++) {
+                            new Utterance().speak(pool);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "Microphone-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    public Histogram getFirstInterimMillis() {
+        return mFirstInterimMillis;
+    }
+
+    /**
+     * @return The time from the end of the audio until the final result: the latency the user
+     * perceives.
+     */
+    public Histogram getFinalMillis() {
+        return mFinalMillis;
+    }
+
+    public Histogram getStreamMillis() {
+        return mStreamMillis;
+    }
+
+    public long getErrors() {
+        return mErrors.get();
+    }
+
+    /**
+     * @return The statistics of the request side of the streams.
+     */
+    public SpeechStats getStats() {
+        return mStats;
+    }
+
+    public void report(PrintStream out) {
+        out.println("streams: " + mStreamMillis.getCount() + ", errors: " + mErrors.get()
+                + ", audio bytes sent: " + mStats.getAudioBytesSent()
+                + ", outbound dropped frames: " + mStats.getOutboundDroppedFrames());
+        out.println(mFirstInterimMillis);
+        out.println(mFinalMillis);
+        out.println(mStreamMillis);
+    }
+
+    /**
+     * One utterance of a simulated microphone, sent in a stream of its own.
+     */
+    private class Utterance implements AudioStream.Listener, FrameAggregator.Sink {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private final long mStartNanos = System.nanoTime();
+
+        private volatile long mAudioEndNanos;
+
+        private volatile boolean mFailed;
+
+        private boolean mInterimReceived;
+
+        private final FrameAggregator mAggregator;
+
+        private final AudioStream mStream;
+
+        Utterance() {
+            mAggregator = new FrameAggregator(SAMPLE_RATE, mChunkMillis, this);
+            mStream = new AudioStream(mChannel, CallOptions.DEFAULT,
+                    AudioStream.config("en-US", mFlac ? RecognitionConfig.AudioEncoding.FLAC
+                            : RecognitionConfig.AudioEncoding.LINEAR16, SAMPLE_RATE, false),
+                    MAX_QUEUED_MILLIS, mAggregator, mStats, this);
+        }
+
+        void speak(AudioFramePool pool) throws InterruptedException {
+            long nextNanos = System.nanoTime();
+            for (int offset = 0; offset < mPcm.length && !mFailed; offset += mChunkBytes) {
+                final AudioFrame frame = pool.acquire();
+                final int size = Math.min(mChunkBytes, mPcm.length - offset);
+                System.arraycopy(mPcm, offset, frame.getData(), 0, size);
+                frame.setSize(size);
+                mAggregator.add(frame);
+                frame.release();
+                // Wait for the next chunk as if it was recorded.
+                nextNanos += mChunkNanos;
+                long wait;
+                while ((wait = nextNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            }
+            mAggregator.flush();
+            mAudioEndNanos = System.nanoTime();
+            mStream.finish();
+            mDone.await();
+            mStreamMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos));
+        }
+
+        @Override
+        public void onChunk(AudioFrame chunk) {
+            mStream.send(chunk);
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeResponse response) {
+            if (response.getResultsCount() == 0) {
+                return;
+            }
+            final StreamingRecognitionResult result = response.getResults(0);
+            final long now = System.nanoTime();
+            if (result.getIsFinal()) {
+                mFinalMillis.record(TimeUnit.NANOSECONDS.toMillis(now - mAudioEndNanos));
+            } else if (!mInterimReceived) {
+                mInterimReceived = true;
+                mFirstInterimMillis.record(TimeUnit.NANOSECONDS.toMillis(now - mStartNanos));
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            mFailed = true;
+            mErrors.incrementAndGet();
+            mDone.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            mDone.countDown();
+        }
+
+        @Override
+        public void onReady() {
+        }
+
+        @Override
+        public long onOutboundFull() {
+            // Drop the oldest silence right away, like the default policy of the app.
+            return 0;
+        }
+
+        @Override
+        public void onAudioDropped(long offset, int size) {
+        }
+
+    }
+
+    static byte[] loadFixture() throws IOException {
+        final InputStream in = LoadDriver.class.getResourceAsStream("/audio.raw");
+        if (in == null) {
+            throw new IOException("audio.raw is not on the classpath");
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Runs the load against a {@link FakeSpeechServer}.
+     *
+     * <p>Options: {@code --streams=8 --utterances=4 --chunk=100 --speed=1 --latency=100
+     * --jitter=50 --error-rate=0 --flac}</p>
+     */
+    public static void main(String[] args) throws Exception {
+        int streams = 8;
+        int utterances = 4;
+        int chunkMillis = 100;
+        double speed = 1;
+        long latency = 100;
+        long jitter = 50;
+        double errorRate = 0;
+        boolean flac = false;
+        for (String arg : args) {
+            final String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--streams=")) {
+                streams = Integer.parseInt(value);
+            } else if (arg.startsWith("--utterances=")) {
+                utterances = Integer.parseInt(value);
+            } else if (arg.startsWith("--chunk=")) {
+                chunkMillis = Integer.parseInt(value);
+            } else if (arg.startsWith("--speed=")) {
+                speed = Double.parseDouble(value);
+            } else if (arg.startsWith("--latency=")) {
+                latency = Long.parseLong(value);
+            } else if (arg.startsWith("--jitter=")) {
+                jitter = Long.parseLong(value);
+            } else if (arg.startsWith("--error-rate=")) {
+                errorRate = Double.parseDouble(value);
+            } else if (arg.equals("--flac")) {
+                flac = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        final FakeSpeechServer server = new FakeSpeechServer("load-driver");
+        server.setLatencyMillis(latency);
+        server.setJitterMillis(jitter);
+        server.setErrorRate(errorRate, Status.UNAVAILABLE);
+        server.start();
+        final ManagedChannel channel = server.newChannel();
+        try {
+            final LoadDriver driver = new LoadDriver(channel, loadFixture(), chunkMillis, speed,
+                    flac);
+            final long start = System.nanoTime();
+            driver.run(streams, utterances);
+            System.out.printf("%d x %d utterances in %.1f s%n", streams, utterances,
+                    (System.nanoTime() - start) / 1e9);
+            driver.report(System.out);
+        } finally {
+            channel.shutdownNow();
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+
+
+public class LoadDriverTest {
+
+    private FakeSpeechServer mServer;
+
+    private ManagedChannel mChannel;
+
+    private byte[] mPcm;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeSpeechServer("test");
+        mServer.setLatencyMillis(20);
+        mServer.setJitterMillis(10);
+        mServer.start();
+        mChannel = mServer.newChannel();
+        mPcm = LoadDriver.loadFixture();
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.shutdownNow();
+        mServer.stop();
+    }
+
+    @Test
+    public void run() throws Exception {
+        final LoadDriver driver = new LoadDriver(mChannel, mPcm, 100, 50, false);
+        driver.run(4, 2);
+        assertEquals(0, driver.getErrors());
+        assertEquals(8, mServer.getStreams());
+        assertEquals(8, driver.getFinalMillis().getCount());
+        assertEquals(8, driver.getFirstInterimMillis().getCount());
+        assertEquals(8L * mPcm.length, mServer.getAudioBytes());
+        assertTrue(driver.getFinalMillis().getPercentile(50) >= 20);
+    }
+
+    @Test
+    public void run_flac() throws Exception {
+        final LoadDriver driver = new LoadDriver(mChannel, mPcm, 100, 50, true);
+        driver.run(2, 1);
+        assertEquals(0, driver.getErrors());
+        assertEquals(2, driver.getFinalMillis().getCount());
+        assertTrue(mServer.getAudioBytes() < 2L * mPcm.length);
+    }
+
+    @Test
+    public void run_errors() throws Exception {
+        mServer.setErrorRate(1, Status.UNAVAILABLE);
+        final LoadDriver driver = new LoadDriver(mChannel, mPcm, 100, 50, false);
+        driver.run(3, 1);
+        assertEquals(3, driver.getErrors());
+        assertEquals(0, driver.getFinalMillis().getCount());
+    }
+
+}
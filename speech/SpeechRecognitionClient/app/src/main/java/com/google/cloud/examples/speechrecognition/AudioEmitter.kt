@@ -20,69 +20,173 @@ import android.media.AudioFormat
 import android.media.AudioRecord
 import android.media.MediaRecorder
 import android.util.Log
-import com.google.protobuf.ByteString
-import java.util.concurrent.Executors
-import java.util.concurrent.ScheduledExecutorService
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.TimeUnit
 
 private const val TAG = "Audio"
 
+/** The length of the audio in each frame. */
+private const val FRAME_MILLIS = 100
+
+/** The number of frames that can wait for the collector before recording is suspended. */
+private const val BUFFER_FRAMES = 10
+
+/**
+ * A chunk of microphone audio. Call [release] once it has been sent, so that it can be reused.
+ */
+internal class AudioFrame(
+        val data: ByteArray,
+        private val pool: ConcurrentLinkedQueue<AudioFrame>
+) {
+
+    /** The number of bytes of audio in [data]. */
+    var size = 0
+
+    /** [System.nanoTime] when the audio was read from the microphone. */
+    var capturedNanos = 0L
+
+    fun release() {
+        pool.offer(this)
+    }
+}
+
+/**
+ * Counts the audio going through an [AudioEmitter].
+ */
+internal class AudioStats {
+
+    /** The number of frames read from the microphone. */
+    @Volatile
+    var frames = 0L
+        private set
+
+    /** The number of times that recording waited for the collector to catch up. */
+    @Volatile
+    var stalls = 0L
+        private set
+
+    /** The audio that the microphone recorded while nobody was reading it, and was lost. */
+    @Volatile
+    var droppedMillis = 0L
+        private set
+
+    @Volatile
+    var maxLatencyMillis = 0L
+        private set
+
+    // written by the collector, and read by toString() on any thread
+    @Volatile
+    private var mLatencyCount = 0L
+    @Volatile
+    private var mLatencySumMillis = 0L
+
+    /** The average time from reading a frame from the microphone to sending it. */
+    val averageLatencyMillis: Long
+        get() = if (mLatencyCount == 0L) 0 else mLatencySumMillis / mLatencyCount
+
+    internal fun onFrame(stalled: Boolean, droppedMillis: Long) {
+        frames++
+        if (stalled) {
+            stalls++
+        }
+        if (droppedMillis > this.droppedMillis) {
+            this.droppedMillis = droppedMillis
+        }
+    }
+
+    /** Call this from the collector once the [frame] is sent. */
+    fun onSent(frame: AudioFrame) {
+        val latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - frame.capturedNanos)
+        mLatencyCount++
+        mLatencySumMillis += latency
+        if (latency > maxLatencyMillis) {
+            maxLatencyMillis = latency
+        }
+    }
+
+    override fun toString() = "frames=$frames stalls=$stalls dropped=${droppedMillis}ms " +
+            "latency=${averageLatencyMillis}ms max=${maxLatencyMillis}ms"
+}
+
 /**
- * Emits microphone audio using a background [ScheduledExecutorService].
+ * Emits microphone audio as a cold [Flow] of [AudioFrame]s.
+ *
+ * Each collection records from its own [AudioRecord], paced by the microphone itself, and stops
+ * recording when the collection is cancelled. Up to [BUFFER_FRAMES] frames wait for a slow
+ * collector; after that, recording is suspended and the microphone's own buffer fills up, until
+ * audio is lost. The losses are counted in [stats].
  */
-internal class AudioEmitter {
+internal class AudioEmitter(
+        private val encoding: Int = AudioFormat.ENCODING_PCM_16BIT,
+        private val channel: Int = AudioFormat.CHANNEL_IN_MONO,
+        val sampleRate: Int = 16000
+) {
 
-    private var mAudioRecorder: AudioRecord? = null
-    private var mAudioExecutor: ScheduledExecutorService? = null
-    private lateinit var mBuffer: ByteArray
+    val stats = AudioStats()
 
-    /** Start streaming  */
-    fun start(
-            encoding: Int = AudioFormat.ENCODING_PCM_16BIT,
-            channel: Int = AudioFormat.CHANNEL_IN_MONO,
-            sampleRate: Int = 16000,
-            subscriber: (ByteString) -> Unit
-    ) {
-        mAudioExecutor = Executors.newSingleThreadScheduledExecutor()
+    private val mPool = ConcurrentLinkedQueue<AudioFrame>()
+
+    /** Records audio for as long as the flow is collected. */
+    fun frames(): Flow<AudioFrame> = flow {
+        val bytesPerMillis = sampleRate * 2 / 1000
+        val frameSize = bytesPerMillis * FRAME_MILLIS
+        val bufferSize = maxOf(2 * AudioRecord.getMinBufferSize(sampleRate, channel, encoding),
+                2 * frameSize)
+        val bufferMillis = bufferSize / bytesPerMillis
 
         // create and configure recorder
         // Note: ensure settings are match the speech recognition config
-        mAudioRecorder = AudioRecord.Builder()
+        val recorder = AudioRecord.Builder()
                 .setAudioSource(MediaRecorder.AudioSource.MIC)
                 .setAudioFormat(AudioFormat.Builder()
                         .setEncoding(encoding)
                         .setSampleRate(sampleRate)
                         .setChannelMask(channel)
                         .build())
+                .setBufferSizeInBytes(bufferSize)
                 .build()
-        mBuffer = ByteArray(2 * AudioRecord.getMinBufferSize(sampleRate, channel, encoding))
 
         // start!
-        Log.d(TAG, "Recording audio with buffer size of: ${mBuffer.size} bytes")
-        mAudioRecorder!!.startRecording()
-
-        // stream bytes as they become available in chunks equal to the buffer size
-        mAudioExecutor!!.scheduleAtFixedRate({
-            // read audio data
-            val read = mAudioRecorder!!.read(
-                    mBuffer, 0, mBuffer.size, AudioRecord.READ_BLOCKING)
-
-            // send next chunk
-            if (read > 0) {
-                subscriber(ByteString.copyFrom(mBuffer, 0, read))
-            }
-        }, 0, 10, TimeUnit.MILLISECONDS)
-    }
+        Log.d(TAG, "Recording audio in frames of $frameSize bytes, buffer size of: $bufferSize bytes")
+        recorder.startRecording()
+        try {
+            val startNanos = System.nanoTime()
+            var recordedBytes = 0L
+            while (true) {
+                val frame = mPool.poll()?.takeIf { it.data.size == frameSize }
+                        ?: AudioFrame(ByteArray(frameSize), mPool)
 
-    /** Stop Streaming  */
-    fun stop() {
-        // stop events
-        mAudioExecutor?.shutdown()
-        mAudioExecutor = null
+                // read audio data; this waits for the microphone, so there is no timer to drift
+                val read = recorder.read(frame.data, 0, frameSize, AudioRecord.READ_BLOCKING)
+                if (read < 0) {
+                    frame.release()
+                    throw IOException("Error reading audio: $read")
+                }
+                val capturedNanos = System.nanoTime()
+                frame.size = read
+                frame.capturedNanos = capturedNanos
+                recordedBytes += read
 
-        // stop recording
-        mAudioRecorder?.stop()
-        mAudioRecorder?.release()
-        mAudioRecorder = null
-    }
+                // anything recorded beyond what we have read and what the recorder holds is lost
+                val elapsedMillis = TimeUnit.NANOSECONDS.toMillis(capturedNanos - startNanos)
+                val dropped = elapsedMillis - recordedBytes / bytesPerMillis - bufferMillis
+
+                // suspends while the buffer is full
+                emit(frame)
+                val stalled = TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - capturedNanos) >= FRAME_MILLIS
+                stats.onFrame(stalled, dropped)
+            }
+        } finally {
+            // stop recording
+            recorder.stop()
+            recorder.release()
+        }
+    }.buffer(BUFFER_FRAMES).flowOn(Dispatchers.IO)
 }
@@ -25,15 +25,16 @@ import android.util.Log
 import android.view.Gravity
 import android.widget.TextSwitcher
 import android.widget.TextView
-import com.google.api.gax.rpc.ApiStreamObserver
-import com.google.auth.oauth2.GoogleCredentials
-import com.google.cloud.speech.v1.RecognitionConfig
-import com.google.cloud.speech.v1.SpeechClient
-import com.google.cloud.speech.v1.SpeechSettings
-import com.google.cloud.speech.v1.StreamingRecognitionConfig
-import com.google.cloud.speech.v1.StreamingRecognizeRequest
-import com.google.cloud.speech.v1.StreamingRecognizeResponse
-import java.util.concurrent.atomic.AtomicBoolean
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.IOException
+import kotlin.coroutines.CoroutineContext
 
 private const val TAG = "Speech"
 
@@ -41,7 +42,7 @@ private const val TAG = "Speech"
  * This example demonstrates calling the Cloud Speech-to-Text bidirectional
  * streaming API.
  */
-class MainActivity : AppCompatActivity() {
+class MainActivity : AppCompatActivity(), CoroutineScope {
 
     companion object {
         private val PERMISSIONS = arrayOf(Manifest.permission.RECORD_AUDIO)
@@ -49,24 +50,22 @@ class MainActivity : AppCompatActivity() {
     }
 
     private var mPermissionToRecord = false
-    private var mAudioEmitter: AudioEmitter? = null
+    private val mAudioEmitter = AudioEmitter()
+    private var mAudioJob: Job? = null
+    private var mSupervisor: StreamSupervisor? = null
     private lateinit var mTextView: TextSwitcher
 
-    private val mSpeechClient by lazy {
-        // NOTE: The line below uses an embedded credential (res/raw/sa.json).
-        //       You should not package a credential with real application.
-        //       Instead, you should get a credential securely from a server.
-        applicationContext.resources.openRawResource(R.raw.credential).use {
-            SpeechClient.create(SpeechSettings.newBuilder()
-                    .setCredentialsProvider { GoogleCredentials.fromStream(it) }
-                    .build())
-        }
-    }
+    private val mJob = SupervisorJob()
+    override val coroutineContext: CoroutineContext
+        get() = Dispatchers.Main + mJob
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_main)
 
+        // build the client in the background while the UI and the permission are set up
+        SpeechClientHolder.warmUp(this)
+
         // get permissions
         ActivityCompat.requestPermissions(
                 this, PERMISSIONS, REQUEST_RECORD_AUDIO_PERMISSION)
@@ -89,50 +88,45 @@ class MainActivity : AppCompatActivity() {
 
         // kick-off recording process, if we're allowed
         if (mPermissionToRecord) {
-            val isFirstRequest = AtomicBoolean(true)
-            mAudioEmitter = AudioEmitter()
-
-            // start streaming the data to the server and collect responses
-            val requestStream = mSpeechClient.streamingRecognizeCallable()
-                    .bidiStreamingCall(object : ApiStreamObserver<StreamingRecognizeResponse> {
-                        override fun onNext(value: StreamingRecognizeResponse) {
-                            runOnUiThread {
-                                when {
-                                    value.resultsCount > 0 -> mTextView.setText(value.getResults(0).getAlternatives(0).transcript)
-                                    else -> mTextView.setText(getString(R.string.api_error))
-                                }
-                            }
-                        }
-
-                        override fun onError(t: Throwable) {
-                            Log.e(TAG, "an error occurred", t)
-                        }
+            mAudioJob = launch {
+                // the client is built in the background, and is usually ready by now
+                val client = try {
+                    SpeechClientHolder.await(this@MainActivity)
+                } catch (e: IOException) {
+                    Log.e(TAG, "unable to create the speech client", e)
+                    mTextView.setText(getString(R.string.api_error))
+                    return@launch
+                }
 
-                        override fun onCompleted() {
-                            Log.d(TAG, "stream closed")
+                // start streaming the data to the server and collect responses; the supervisor
+                // keeps the recognition going past the time limit of a single stream
+                val supervisor = StreamSupervisor(client, "en-US", mAudioEmitter.sampleRate,
+                        onFailure = {
+                            // the supervisor keeps retrying; say so until the speech comes back
+                            runOnUiThread { mTextView.setText(getString(R.string.api_error)) }
+                        }) { text ->
+                    runOnUiThread { mTextView.setText(text) }
+                }
+                mSupervisor = supervisor
+
+                // send requests as audio data becomes available; the collector takes one frame
+                // at a time, so the microphone waits for it (up to a limit) rather than piling
+                // up audio
+                withContext(Dispatchers.Default) {
+                    try {
+                        mAudioEmitter.frames().collect { frame ->
+                            // send the next request, and give the frame back for reuse
+                            supervisor.send(frame.data, frame.size)
+                            mAudioEmitter.stats.onSent(frame)
+                            frame.release()
                         }
-                    })
-
-            // monitor the input stream and send requests as audio data becomes available
-            mAudioEmitter!!.start { bytes ->
-                val builder = StreamingRecognizeRequest.newBuilder()
-                        .setAudioContent(bytes)
-
-                // if first time, include the config
-                if (isFirstRequest.getAndSet(false)) {
-                    builder.streamingConfig = StreamingRecognitionConfig.newBuilder()
-                            .setConfig(RecognitionConfig.newBuilder()
-                                    .setLanguageCode("en-US")
-                                    .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                    .setSampleRateHertz(16000)
-                                    .build())
-                            .setInterimResults(false)
-                            .setSingleUtterance(false)
-                            .build()
+                    } catch (e: IOException) {
+                        Log.e(TAG, "recording failed", e)
+                    } finally {
+                        // cancelled, or the microphone failed
+                        supervisor.close()
+                    }
                 }
-
-                // send the next request
-                requestStream.onNext(builder.build())
             }
         } else {
             Log.e(TAG, "No permission to record! Please allow and then relaunch the app!")
@@ -143,15 +137,21 @@ class MainActivity : AppCompatActivity() {
         super.onPause()
 
         // ensure mic data stops
-        mAudioEmitter?.stop()
-        mAudioEmitter = null
+        mAudioJob?.cancel()
+        mAudioJob = null
+        Log.i(TAG, "audio: ${mAudioEmitter.stats}")
+        mSupervisor?.let { Log.i(TAG, "streams: $it") }
+        mSupervisor = null
     }
 
     override fun onDestroy() {
         super.onDestroy()
 
-        // cleanup
-        mSpeechClient.shutdown()
+        // cleanup; keep the client if the activity is only being recreated
+        cancel()
+        if (!isChangingConfigurations) {
+            SpeechClientHolder.release()
+        }
     }
 
     override fun onRequestPermissionsResult(requestCode: Int, permissions: Array<String>, grantResults: IntArray) {
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.examples.speechrecognition
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import com.google.api.gax.core.FixedCredentialsProvider
+import com.google.api.gax.grpc.GrpcTransportChannel
+import com.google.api.gax.rpc.FixedTransportChannelProvider
+import com.google.auth.oauth2.GoogleCredentials
+import com.google.cloud.speech.v1.SpeechClient
+import com.google.cloud.speech.v1.SpeechSettings
+import io.grpc.ManagedChannel
+import io.grpc.ManagedChannelBuilder
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import java.util.concurrent.TimeUnit
+
+private const val TAG = "SpeechClient"
+
+/**
+ * Builds the [SpeechClient] in the background, and shares it for as long as the app needs it.
+ *
+ * Parsing the credential and creating the client takes long enough to drop frames, so it never
+ * happens on the UI thread. The connection to the API is opened and the access token is fetched
+ * at the same time, and an activity that is recreated, for example after a rotation, gets the
+ * client that is already connected.
+ */
+internal object SpeechClientHolder {
+
+    private class Connection(val client: SpeechClient, val channel: ManagedChannel)
+
+    private var mConnection: Deferred<Connection>? = null
+
+    /** Starts building the client, unless it is already built or being built. */
+    fun warmUp(context: Context) {
+        connection(context)
+    }
+
+    /** Waits for the client, and builds it if [warmUp] was not called. */
+    suspend fun await(context: Context): SpeechClient = connection(context).await().client
+
+    /** Shuts down the client. The next call to [warmUp] or [await] builds a new one. */
+    @Synchronized
+    fun release() {
+        val pending = mConnection ?: return
+        mConnection = null
+        GlobalScope.launch(Dispatchers.IO) {
+            try {
+                val connection = pending.await()
+                connection.client.shutdown()
+                connection.channel.shutdown().awaitTermination(5, TimeUnit.SECONDS)
+            } catch (e: Exception) {
+                Log.w(TAG, "client was not shut down cleanly", e)
+            }
+        }
+    }
+
+    @Synchronized
+    private fun connection(context: Context): Deferred<Connection> {
+        // try again if the last attempt failed
+        mConnection?.takeUnless { it.isCancelled }?.let { return it }
+        val resources = context.applicationContext.resources
+        val connection = GlobalScope.async(Dispatchers.IO) {
+            val start = SystemClock.elapsedRealtime()
+
+            // start connecting to the API while the rest is prepared
+            val channel = ManagedChannelBuilder.forTarget(SpeechSettings.getDefaultEndpoint())
+                    .build()
+            channel.getState(true)
+
+            try {
+                // NOTE: The line below uses an embedded credential (res/raw/sa.json).
+                //       You should not package a credential with real application.
+                //       Instead, you should get a credential securely from a server.
+                val credentials = resources.openRawResource(R.raw.credential).use {
+                    GoogleCredentials.fromStream(it)
+                }.createScoped(SpeechSettings.getDefaultServiceScopes())
+                credentials.refreshIfExpired()
+
+                val client = SpeechClient.create(SpeechSettings.newBuilder()
+                        .setCredentialsProvider(FixedCredentialsProvider.create(credentials))
+                        .setTransportChannelProvider(FixedTransportChannelProvider.create(
+                                GrpcTransportChannel.create(channel)))
+                        .build())
+                Log.d(TAG, "client ready in ${SystemClock.elapsedRealtime() - start}ms")
+                Connection(client, channel)
+            } catch (e: Exception) {
+                channel.shutdownNow()
+                throw e
+            }
+        }
+        mConnection = connection
+        return connection
+    }
+}
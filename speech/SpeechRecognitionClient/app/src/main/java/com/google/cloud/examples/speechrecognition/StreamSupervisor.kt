@@ -0,0 +1,382 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.examples.speechrecognition
+
+import android.os.SystemClock
+import android.util.Log
+import com.google.api.gax.rpc.ApiStreamObserver
+import com.google.cloud.speech.v1.RecognitionConfig
+import com.google.cloud.speech.v1.SpeechClient
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative
+import com.google.cloud.speech.v1.StreamingRecognitionConfig
+import com.google.cloud.speech.v1.StreamingRecognizeRequest
+import com.google.cloud.speech.v1.StreamingRecognizeResponse
+import com.google.protobuf.ByteString
+import com.google.protobuf.Duration
+
+private const val TAG = "StreamSupervisor"
+
+/** Streams are replaced before the API ends them at about 5 minutes. */
+private const val STREAM_LIMIT_MILLIS = 4 * 60 * 1000L
+
+/** The audio sent to both the old and the new stream, so that no word is cut in half. */
+private const val OVERLAP_MILLIS = 2000L
+
+/** The most audio sent in one request while replaying the overlap. */
+private const val REPLAY_CHUNK_MILLIS = 100L
+
+/** The wait before reopening a stream that failed, doubled for each failure in a row. */
+private const val RETRY_DELAY_MILLIS = 500L
+
+/** The longest wait before reopening a stream that failed. */
+private const val MAX_RETRY_DELAY_MILLIS = 30 * 1000L
+
+/**
+ * Keeps one long-running recognition going across as many `streamingRecognize` calls as it takes.
+ *
+ * A stream is replaced by a new one shortly before the API would end it, and is reopened on the
+ * next audio if the API ends it early. Either way, the last [OVERLAP_MILLIS] of audio are sent
+ * to the new stream again. Word time offsets are used to take each word from only one of the
+ * streams, so that [onTranscript] gets each piece of speech once, in order.
+ *
+ * A stream that fails is reported to [onFailure], and reopened after a delay that doubles with
+ * each failure in a row, up to [MAX_RETRY_DELAY_MILLIS].
+ *
+ * All methods can be called on any thread.
+ */
+internal class StreamSupervisor(
+        private val client: SpeechClient,
+        private val languageCode: String,
+        private val sampleRate: Int,
+        private val onFailure: (Throwable) -> Unit,
+        private val onTranscript: (String) -> Unit
+) {
+
+    /** The number of times a stream was replaced, planned or not. */
+    var restarts = 0
+        private set
+
+    /** The longest time that audio was not streamed to the API, between a close and a reopen. */
+    var maxGapMillis = 0L
+        private set
+
+    /** The total time that audio was not streamed to the API. */
+    var totalGapMillis = 0L
+        private set
+
+    private val mBytesPerMillis = sampleRate * 2 / 1000
+    private val mOverlap = ByteArray((OVERLAP_MILLIS * mBytesPerMillis).toInt())
+    private var mOverlapSize = 0
+    private var mOverlapEnd = 0
+
+    /** The amount of audio received since the recognition began. */
+    private var mTimelineBytes = 0L
+
+    /** The stream that receives audio, or `null` if the last one was ended by the API. */
+    private var mStream: Stream? = null
+
+    /** The stream that ended last; its words decide where the next one takes over. */
+    private var mLastStream: Stream? = null
+
+    /** When [mStream] was lost, or 0. */
+    private var mLostMillis = 0L
+
+    /** The number of streams in a row that failed without a single result. */
+    private var mFailedStreams = 0
+
+    /** When a stream can be reopened after a failure. */
+    private var mRetryMillis = 0L
+
+    private var mStarted = false
+    private var mClosed = false
+
+    /** Sends the next piece of LINEAR16 audio, replacing the stream if needed. */
+    @Synchronized
+    fun send(data: ByteArray, size: Int) {
+        if (mClosed) {
+            return
+        }
+        remember(data, size)
+        mTimelineBytes += size
+        val stream = mStream
+        when {
+            !mStarted -> {
+                mStarted = true
+                open(0, null)
+            }
+            stream == null -> reopen()
+            stream.isExpiring() -> rollOver(stream)
+            // copied rather than wrapped: gRPC serializes a request later if the call is still
+            // connecting, and the caller reuses the data as soon as this returns
+            else -> stream.send(ByteString.copyFrom(data, 0, size))
+        }
+    }
+
+    /** Finishes the current stream. Its remaining results are still delivered. */
+    @Synchronized
+    fun close() {
+        mClosed = true
+        mStream?.finish()
+        mStream = null
+    }
+
+    @Synchronized
+    override fun toString() = "restarts=$restarts maxGap=${maxGapMillis}ms " +
+            "totalGap=${totalGapMillis}ms"
+
+    /** Replaces a stream that is about to reach the limit, while it is still open. */
+    private fun rollOver(previous: Stream) {
+        val seamMillis = toMillis(mTimelineBytes)
+        // the old stream hears the words before the middle of the overlap, and the new one the
+        // words after it, so that both have some context on each side
+        val cutMillis = synchronized(previous) {
+            val cut = maxOf(seamMillis - OVERLAP_MILLIS / 2, previous.lastWordEndMillis)
+            previous.windowEndMillis = cut
+            cut
+        }
+        open(cutMillis, previous)
+        previous.finish()
+        restarts++
+        Log.i(TAG, "rolled over to a new stream at ${seamMillis}ms")
+    }
+
+    /** Opens a stream after the API ended the last one early. */
+    private fun reopen() {
+        val now = SystemClock.elapsedRealtime()
+        if (now < mRetryMillis) {
+            return
+        }
+        val gap = now - mLostMillis
+        maxGapMillis = maxOf(maxGapMillis, gap)
+        totalGapMillis += gap
+        // the words of the last stream are all in; start after its last one
+        val last = mLastStream
+        open(if (last == null) 0 else synchronized(last) { last.lastWordEndMillis }, null)
+        restarts++
+        Log.i(TAG, "reopened the stream after a gap of ${gap}ms")
+    }
+
+    /**
+     * Opens a stream and sends it the overlap, which ends with the newest audio.
+     *
+     * @param windowStartMillis The words before this belong to the earlier streams.
+     * @param previous The stream that is still delivering the words before the new one's.
+     */
+    private fun open(windowStartMillis: Long, previous: Stream?) {
+        val stream = Stream(toMillis(mTimelineBytes - mOverlapSize), windowStartMillis)
+        if (previous != null) {
+            synchronized(previous) {
+                if (!previous.completed) {
+                    synchronized(stream) {
+                        stream.previous = previous
+                    }
+                    previous.next = stream
+                }
+            }
+        }
+        mStream = stream
+        val chunk = (REPLAY_CHUNK_MILLIS * mBytesPerMillis).toInt()
+        var offset = 0
+        while (offset < mOverlapSize) {
+            val size = minOf(chunk, mOverlapSize - offset)
+            stream.send(overlap(offset, size))
+            offset += size
+        }
+    }
+
+    @Synchronized
+    private fun onStreamEnded(stream: Stream, failed: Boolean) {
+        if (failed) {
+            mFailedStreams++
+            val delay = minOf(MAX_RETRY_DELAY_MILLIS,
+                    RETRY_DELAY_MILLIS shl minOf(mFailedStreams - 1, 16))
+            mRetryMillis = SystemClock.elapsedRealtime() + delay
+            Log.w(TAG, "reopening the stream in ${delay}ms after $mFailedStreams failure(s)")
+        }
+        if (stream === mStream) {
+            mStream = null
+            mLostMillis = SystemClock.elapsedRealtime()
+        }
+        mLastStream = stream
+    }
+
+    @Synchronized
+    private fun onStreamWorking() {
+        mFailedStreams = 0
+    }
+
+    private fun remember(data: ByteArray, size: Int) {
+        var offset = maxOf(0, size - mOverlap.size)
+        while (offset < size) {
+            val count = minOf(size - offset, mOverlap.size - mOverlapEnd)
+            System.arraycopy(data, offset, mOverlap, mOverlapEnd, count)
+            mOverlapEnd = (mOverlapEnd + count) % mOverlap.size
+            offset += count
+        }
+        mOverlapSize = minOf(mOverlap.size, mOverlapSize + size)
+    }
+
+    private fun overlap(offset: Int, size: Int): ByteString {
+        val start = (mOverlapEnd - mOverlapSize + offset + mOverlap.size) % mOverlap.size
+        val first = minOf(size, mOverlap.size - start)
+        val head = ByteString.copyFrom(mOverlap, start, first)
+        return if (first == size) {
+            head
+        } else {
+            head.concat(ByteString.copyFrom(mOverlap, 0, size - first))
+        }
+    }
+
+    private fun toMillis(bytes: Long) = bytes / mBytesPerMillis
+
+    /**
+     * One `streamingRecognize` call. The fields are guarded by the stream itself, as results
+     * arrive on gRPC threads.
+     *
+     * @param audioStartMillis Where the audio of this stream begins in the whole recognition.
+     * @param windowStartMillis Words that start before this are heard better by earlier streams.
+     */
+    private inner class Stream(
+            private val audioStartMillis: Long,
+            private val windowStartMillis: Long
+    ) : ApiStreamObserver<StreamingRecognizeResponse> {
+
+        private val mOpenedMillis = SystemClock.elapsedRealtime()
+        private var mSentBytes = 0L
+        private var mFirstRequest = true
+        private val mRequests = client.streamingRecognizeCallable().bidiStreamingCall(this)
+
+        /** Words that start after this are heard better by the next stream. */
+        var windowEndMillis = Long.MAX_VALUE
+
+        var lastWordEndMillis = 0L
+        var completed = false
+
+        /** The stream before this one, until it has delivered all of its results. */
+        var previous: Stream? = null
+        var next: Stream? = null
+
+        /** Transcripts held back until [previous] has completed. */
+        private val mPendingTranscripts = mutableListOf<String>()
+
+        fun isExpiring() = SystemClock.elapsedRealtime() - mOpenedMillis >= STREAM_LIMIT_MILLIS
+                || mSentBytes / mBytesPerMillis >= STREAM_LIMIT_MILLIS
+
+        fun send(audio: ByteString) {
+            val builder = StreamingRecognizeRequest.newBuilder().setAudioContent(audio)
+
+            // if first time, include the config
+            if (mFirstRequest) {
+                mFirstRequest = false
+                builder.streamingConfig = StreamingRecognitionConfig.newBuilder()
+                        .setConfig(RecognitionConfig.newBuilder()
+                                .setLanguageCode(languageCode)
+                                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                                .setSampleRateHertz(sampleRate)
+                                .setEnableWordTimeOffsets(true)
+                                .build())
+                        .setInterimResults(false)
+                        .setSingleUtterance(false)
+                        .build()
+            }
+            mRequests.onNext(builder.build())
+            mSentBytes += audio.size()
+        }
+
+        fun finish() {
+            mRequests.onCompleted()
+        }
+
+        override fun onNext(value: StreamingRecognizeResponse) {
+            onStreamWorking()
+            for (result in value.resultsList) {
+                if (!result.isFinal || result.alternativesCount == 0) {
+                    continue
+                }
+                synchronized(this) {
+                    val text = stitch(result.getAlternatives(0)) ?: return@synchronized
+                    if (previous != null) {
+                        mPendingTranscripts.add(text)
+                    } else {
+                        onTranscript(text)
+                    }
+                }
+            }
+        }
+
+        override fun onError(t: Throwable) {
+            Log.e(TAG, "an error occurred", t)
+            complete(true)
+            onFailure(t)
+        }
+
+        override fun onCompleted() {
+            Log.d(TAG, "stream closed")
+            complete(false)
+        }
+
+        private fun complete(failed: Boolean) {
+            onStreamEnded(this, failed)
+            val following = synchronized(this) {
+                completed = true
+                val following = next
+                next = null
+                following
+            }
+            following?.flushPendingTranscripts()
+        }
+
+        private fun flushPendingTranscripts() {
+            synchronized(this) {
+                previous = null
+                mPendingTranscripts.forEach(onTranscript)
+                mPendingTranscripts.clear()
+            }
+        }
+
+        /**
+         * Picks the words of a final result that fall into the window of this stream.
+         *
+         * @return The transcript, or `null` if all of the words belong to other streams.
+         */
+        private fun stitch(alternative: SpeechRecognitionAlternative): String? {
+            if (alternative.wordsCount == 0) {
+                // without the offsets, a stream that starts with replayed audio would repeat the
+                // words of the stream before it
+                return if (windowStartMillis > audioStartMillis) null else alternative.transcript
+            }
+            val words = mutableListOf<String>()
+            for (word in alternative.wordsList) {
+                val start = audioStartMillis + durationMillis(word.startTime)
+                if (start in windowStartMillis until windowEndMillis) {
+                    words.add(word.word)
+                    lastWordEndMillis = maxOf(lastWordEndMillis,
+                            audioStartMillis + durationMillis(word.endTime))
+                }
+            }
+            return when {
+                // keep the transcript as formatted by the API
+                words.size == alternative.wordsCount -> alternative.transcript
+                words.isEmpty() -> null
+                else -> words.joinToString(" ")
+            }
+        }
+
+        private fun durationMillis(duration: Duration) =
+                duration.seconds * 1000 + duration.nanos / 1000000
+    }
+}